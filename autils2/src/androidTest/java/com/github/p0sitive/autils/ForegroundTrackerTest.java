@@ -0,0 +1,99 @@
+package com.github.p0sitive.autils;
+
+import android.app.Activity;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 前后台状态：生命周期回调驱动的切换通知，以及和getRunningAppProcesses查询的耗时对比
+ */
+@RunWith(AndroidJUnit4.class)
+public class ForegroundTrackerTest {
+    private static final String TAG = "ForegroundTracker";
+
+    private static final int IPC_CALLS = 200;
+    private static final int FIELD_READS = 1000000;
+
+    private volatile int sink;
+
+    @Test
+    public void lifecycleDrivesStateAndListeners() {
+        final ForegroundTracker tracker = new ForegroundTracker();
+        final List<Boolean> changes = new ArrayList<>();
+        tracker.addListener(new AppContext.OnForegroundChangedListener() {
+            @Override
+            public void onForegroundChanged(boolean foreground) {
+                changes.add(foreground);
+            }
+        });
+        assertEquals(ForegroundTracker.STATE_UNKNOWN, tracker.getState());
+
+        //Activity的构造需要Looper，在主线程模拟生命周期
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Activity first = new Activity();
+                Activity second = new Activity();
+                tracker.onActivityStarted(first);
+                tracker.onActivityStarted(second);
+                tracker.onActivityStopped(first);
+                tracker.onActivityStopped(second);
+                tracker.onActivityStarted(first);
+            }
+        });
+
+        assertEquals(ForegroundTracker.STATE_FOREGROUND, tracker.getState());
+        //第一次从未知变为前台不算切换
+        assertEquals(2, changes.size());
+        assertEquals(Boolean.FALSE, changes.get(0));
+        assertEquals(Boolean.TRUE, changes.get(1));
+    }
+
+    @Test
+    public void fieldReadIsMuchCheaperThanIpc() {
+        AppContext.init(InstrumentationRegistry.getTargetContext());
+        final ForegroundTracker tracker = new ForegroundTracker();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                tracker.onActivityStarted(new Activity());
+            }
+        });
+        assertEquals(ForegroundTracker.STATE_FOREGROUND, tracker.getState());
+
+        int foregroundByIpc = 0;
+        long begin = System.nanoTime();
+        for (int i = 0; i < IPC_CALLS; i++) {
+            if (AppContext.queryAppOnForeground()) {
+                foregroundByIpc++;
+            }
+        }
+        long ipcTotalNanos = System.nanoTime() - begin;
+
+        int foreground = 0;
+        begin = System.nanoTime();
+        for (int i = 0; i < FIELD_READS; i++) {
+            foreground += tracker.getState();
+        }
+        long readTotalNanos = System.nanoTime() - begin;
+        //结果写到volatile字段，读取不会被当成无用代码消掉
+        sink = foreground + foregroundByIpc;
+
+        //用总耗时比较，单次读取不到1ns时按次数相除会得到0
+        Log.i(TAG, "getRunningAppProcesses " + IPC_CALLS + " calls " + ipcTotalNanos / 1000 + "us, volatile read "
+                + FIELD_READS + " reads " + readTotalNanos / 1000 + "us, sink " + sink);
+        assertEquals(FIELD_READS * ForegroundTracker.STATE_FOREGROUND, foreground);
+        assertTrue("ipc " + ipcTotalNanos + "ns/" + IPC_CALLS + ", read " + readTotalNanos + "ns/" + FIELD_READS,
+                readTotalNanos * IPC_CALLS * 100 < ipcTotalNanos * FIELD_READS);
+    }
+}
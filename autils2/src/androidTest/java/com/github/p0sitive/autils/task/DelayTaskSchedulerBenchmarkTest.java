@@ -0,0 +1,128 @@
+package com.github.p0sitive.autils.task;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 延时任务的线程数、内存和计时精度：改之前每个延时任务一个ScheduledExecutor，改之后共用一个计时线程
+ */
+@RunWith(AndroidJUnit4.class)
+public class DelayTaskSchedulerBenchmarkTest {
+    private static final String TAG = "DelayBenchmark";
+
+    private static final int PENDING_TIMERS = 10000;
+    /** 旧的写法每个延时任务一个线程，数量太大会把进程拖垮，只用少量对比 */
+    private static final int OLD_PATH_TIMERS = 200;
+    private static final int ACCURACY_SAMPLES = 100;
+    private static final long ACCURACY_DELAY_MILLIS = 50;
+
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Test
+    public void threadCountStaysFlatUnderPendingTimers() {
+        Object tag = new Object();
+        ATaskExecutor.executeDelayTask(tag, NOOP, 1, TimeUnit.HOURS);
+        ATaskExecutor.cancelAllDelayTasks(tag);
+        int threadsBefore = Thread.activeCount();
+        long memoryBefore = usedMemory();
+
+        List<Runnable> runnables = new ArrayList<>(PENDING_TIMERS);
+        for (int i = 0; i < PENDING_TIMERS; i++) {
+            Runnable r = new Runnable() {
+                @Override
+                public void run() {
+                }
+            };
+            runnables.add(r);
+            ATaskExecutor.executeDelayTask(tag, r, 1, TimeUnit.HOURS);
+        }
+        int threadsPending = Thread.activeCount();
+        long memoryPending = usedMemory();
+
+        //重复重新计时同一个runnable，取消的计时项要立即移出队列
+        for (int round = 0; round < 3; round++) {
+            for (Runnable r : runnables) {
+                ATaskExecutor.executeDelayTask(tag, r, 1, TimeUnit.HOURS);
+            }
+        }
+        assertEquals(PENDING_TIMERS, DelayTaskScheduler.getTimer().getQueue().size());
+
+        ATaskExecutor.cancelAllDelayTasks(tag);
+        assertEquals(0, DelayTaskScheduler.getTimer().getQueue().size());
+
+        Log.i(TAG, "new path: " + PENDING_TIMERS + " timers, threads " + threadsBefore + " -> " + threadsPending
+                + ", memory +" + (memoryPending - memoryBefore) / 1024 + "KB");
+        assertTrue("threads grew from " + threadsBefore + " to " + threadsPending, threadsPending - threadsBefore <= 1);
+    }
+
+    @Test
+    public void oldPathOneThreadPerTimer() {
+        int threadsBefore = Thread.activeCount();
+        long memoryBefore = usedMemory();
+        List<ScheduledExecutorService> executors = new ArrayList<>(OLD_PATH_TIMERS);
+        for (int i = 0; i < OLD_PATH_TIMERS; i++) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+            executor.schedule(NOOP, 1, TimeUnit.HOURS);
+            executors.add(executor);
+        }
+        int threadsPending = Thread.activeCount();
+        long memoryPending = usedMemory();
+        for (ScheduledExecutorService executor : executors) {
+            executor.shutdownNow();
+        }
+        Log.i(TAG, "old path: " + OLD_PATH_TIMERS + " timers, threads " + threadsBefore + " -> " + threadsPending
+                + ", memory +" + (memoryPending - memoryBefore) / 1024 + "KB (thread stacks not included)");
+    }
+
+    @Test
+    public void timerAccuracy() throws InterruptedException {
+        Object tag = new Object();
+        final long[] lateness = new long[ACCURACY_SAMPLES];
+        final CountDownLatch done = new CountDownLatch(ACCURACY_SAMPLES);
+        for (int i = 0; i < ACCURACY_SAMPLES; i++) {
+            final int index = i;
+            final long due = SystemClock.uptimeMillis() + ACCURACY_DELAY_MILLIS;
+            ATaskExecutor.executeDelayTask(tag, new Runnable() {
+                @Override
+                public void run() {
+                    lateness[index] = SystemClock.uptimeMillis() - due;
+                    done.countDown();
+                }
+            }, ACCURACY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+
+        Arrays.sort(lateness);
+        long p50 = lateness[ACCURACY_SAMPLES / 2];
+        long p99 = lateness[ACCURACY_SAMPLES * 99 / 100];
+        Log.i(TAG, "lateness p50=" + p50 + "ms p99=" + p99 + "ms");
+        //uptimeMillis只精确到毫秒
+        assertTrue("fired early: " + lateness[0] + "ms", lateness[0] >= -1);
+        assertTrue("p50 lateness " + p50 + "ms", p50 < ACCURACY_DELAY_MILLIS);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.p0sitive.autils.task;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.Printer;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 每1000个事件进入主线程队列的消息数：改之前每个事件postDelayed + cancelSpecificRunnable，
+ * 改之后debounce、throttle、coalesce每个key复用一个消息。<p/>
+ * 这些算子的消息不会被remove，所以用Looper分发日志里的KeyedAction个数作为入队数；
+ * 旧写法的消息大多被取消、不会分发，按实际调用postDelayed的次数计
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeyedOperatorBenchmarkTest {
+    private static final String TAG = "KeyedOperatorBenchmark";
+
+    private static final int EVENTS = 1000;
+    private static final long DELAY_MILLIS = 16;
+    /** 每隔1ms一批事件，模拟连续输入或滚动 */
+    private static final long TICK_MILLIS = 1;
+
+    private static final int MODE_OLD = 0;
+    private static final int MODE_DEBOUNCE = 1;
+    private static final int MODE_THROTTLE = 2;
+    private static final int MODE_COALESCE = 3;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger keyedDispatches = new AtomicInteger();
+    private final AtomicInteger trackedDispatches = new AtomicInteger();
+    /** 旧写法实际调用postDelayed的次数 */
+    private int oldPosts;
+
+    private final Printer printer = new Printer() {
+        @Override
+        public void println(String x) {
+            if (!x.startsWith(">")) {
+                return;
+            }
+            if (x.contains("$KeyedAction")) {
+                keyedDispatches.incrementAndGet();
+            } else if (x.contains("$TrackedRunnable")) {
+                trackedDispatches.incrementAndGet();
+            }
+        }
+    };
+
+    private final Runnable action = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @After
+    public void tearDown() {
+        Looper.getMainLooper().setMessageLogging(null);
+    }
+
+    @Test
+    public void messagesPerThousandEvents() throws Exception {
+        //旧写法每个事件都postDelayed一次
+        int old = run(MODE_OLD, 1);
+        Log.i(TAG, "postDelayed + cancel: " + old + " enqueued, " + trackedDispatches.get() + " dispatched");
+
+        int debounce = run(MODE_DEBOUNCE, 1);
+        int throttle = run(MODE_THROTTLE, 1);
+        //同一帧内的多个事件，每次消息循环10个
+        int coalesce = run(MODE_COALESCE, 10);
+        Log.i(TAG, "per " + EVENTS + " events: old=" + old + " debounce=" + debounce + " throttle=" + throttle
+                + " coalesce=" + coalesce);
+
+        assertTrue("debounce enqueued " + debounce, debounce * 4 < old);
+        assertTrue("throttle enqueued " + throttle, throttle * 4 < old);
+        assertTrue("coalesce enqueued " + coalesce, coalesce * 4 < old);
+    }
+
+    /**
+     * @return 入队的消息数
+     */
+    private int run(final int mode, final int eventsPerTick) throws InterruptedException {
+        final Object key = new Object();
+        final CountDownLatch done = new CountDownLatch(1);
+        keyedDispatches.set(0);
+        trackedDispatches.set(0);
+        oldPosts = 0;
+        Looper.getMainLooper().setMessageLogging(printer);
+
+        mainHandler.post(new Runnable() {
+            int fired;
+
+            @Override
+            public void run() {
+                for (int i = 0; i < eventsPerTick && fired < EVENTS; i++, fired++) {
+                    fire(mode, key);
+                }
+                if (fired < EVENTS) {
+                    mainHandler.postDelayed(this, TICK_MILLIS);
+                } else {
+                    //等最后一个延时消息执行完
+                    mainHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            done.countDown();
+                        }
+                    }, DELAY_MILLIS * 4);
+                }
+            }
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        Looper.getMainLooper().setMessageLogging(null);
+        AMainThreadExecutor.cancelKeyed(key);
+        AMainThreadExecutor.cancelAllRunnables(key);
+        return mode == MODE_OLD ? oldPosts : keyedDispatches.get();
+    }
+
+    private void fire(int mode, Object key) {
+        switch (mode) {
+            case MODE_OLD:
+                AMainThreadExecutor.cancelSpecificRunnable(key, action);
+                AMainThreadExecutor.postDelayed(key, action, DELAY_MILLIS);
+                oldPosts++;
+                break;
+            case MODE_DEBOUNCE:
+                AMainThreadExecutor.debounce(key, DELAY_MILLIS, action);
+                break;
+            case MODE_THROTTLE:
+                AMainThreadExecutor.throttle(key, DELAY_MILLIS, true, true, action);
+                break;
+            case MODE_COALESCE:
+            default:
+                AMainThreadExecutor.coalesce(key, action);
+                break;
+        }
+    }
+}
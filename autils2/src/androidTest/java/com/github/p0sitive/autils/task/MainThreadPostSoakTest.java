@@ -0,0 +1,93 @@
+package com.github.p0sitive.autils.task;
+
+import android.app.Instrumentation;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 长期存在的tag反复post、取消，执行过的Runnable不再被持有，内存保持平稳
+ */
+@RunWith(AndroidJUnit4.class)
+public class MainThreadPostSoakTest {
+    private static final String TAG = "MainThreadPostSoak";
+
+    private static final int BATCH_SIZE = 1000;
+    private static final int BATCHES = 1000;
+    private static final int WARM_UP_BATCHES = 50;
+    private static final int TAG_COUNT = 8;
+    /** 允许的内存增长，远小于每次post都留下记录时的增长 */
+    private static final long MAX_GROWTH_BYTES = 1024 * 1024;
+
+    private final AtomicLong executed = new AtomicLong();
+
+    @Test
+    public void memoryStaysFlatOverMillionsOfPosts() {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        Object[] tags = new Object[TAG_COUNT];
+        for (int i = 0; i < TAG_COUNT; i++) {
+            tags[i] = new Object();
+        }
+        Runnable[] runnables = new Runnable[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            runnables[i] = new Runnable() {
+                @Override
+                public void run() {
+                    executed.incrementAndGet();
+                }
+            };
+        }
+
+        long baseline = 0;
+        long expected = 0;
+        for (int batch = 0; batch < BATCHES; batch++) {
+            Object tag = tags[batch % TAG_COUNT];
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                Runnable r = runnables[i];
+                switch (i % 4) {
+                    case 0:
+                        //post后立即取消，不执行
+                        AMainThreadExecutor.post(tag, r);
+                        AMainThreadExecutor.cancelSpecificRunnable(tag, r);
+                        break;
+                    case 1:
+                        //延时很长，本批结束时整体取消
+                        AMainThreadExecutor.postDelayed(tag, r, 60 * 1000);
+                        break;
+                    default:
+                        AMainThreadExecutor.post(tag, r);
+                        expected++;
+                        break;
+                }
+            }
+            instrumentation.waitForIdleSync();
+            AMainThreadExecutor.cancelAllRunnables(tag);
+
+            if (batch == WARM_UP_BATCHES) {
+                baseline = usedMemory();
+            }
+        }
+        instrumentation.waitForIdleSync();
+        long growth = usedMemory() - baseline;
+
+        Log.i(TAG, BATCHES * BATCH_SIZE + " posts, memory growth " + growth / 1024 + "KB");
+        assertEquals(expected, executed.get());
+        assertTrue("memory grew " + growth + " bytes", growth < MAX_GROWTH_BYTES);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        runtime.runFinalization();
+        runtime.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
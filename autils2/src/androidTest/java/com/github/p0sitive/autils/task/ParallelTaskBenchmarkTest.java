@@ -0,0 +1,146 @@
+package com.github.p0sitive.autils.task;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ParallelTask}在1到N个线程(执行任务的线程 + 0到N-1个辅助线程)下相对单线程直接计算的加速比，以及块失败时的结果
+ */
+@RunWith(AndroidJUnit4.class)
+public class ParallelTaskBenchmarkTest {
+    private static final String TAG = "ParallelBenchmark";
+
+    private static final int INPUT_SIZE = 2000;
+    private static final int WORK_PER_INPUT = 20000;
+
+    private static List<Integer> inputs() {
+        List<Integer> inputs = new ArrayList<>(INPUT_SIZE);
+        for (int i = 0; i < INPUT_SIZE; i++) {
+            inputs.add(i);
+        }
+        return inputs;
+    }
+
+    /**
+     * 纯计算，耗时只和输入个数有关
+     */
+    private static long work(List<Integer> chunk) {
+        long sum = 0;
+        for (Integer input : chunk) {
+            long x = input;
+            for (int i = 0; i < WORK_PER_INPUT; i++) {
+                x = x * 6364136223846793005L + 1442695040888963407L;
+            }
+            sum += x;
+        }
+        return sum;
+    }
+
+    private static class SumTask extends ParallelTask<Integer, Long, Long> {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Long result;
+        volatile Exception error;
+        private final int parallelism;
+
+        SumTask(List<Integer> inputs) {
+            this(inputs, ThreadUtils.COMPUTE_THREAD_SIZE);
+        }
+
+        SumTask(List<Integer> inputs, int parallelism) {
+            super(inputs);
+            this.parallelism = parallelism;
+        }
+
+        @Override
+        protected int getParallelism() {
+            return parallelism;
+        }
+
+        @Override
+        protected Long processChunk(List<Integer> chunk) throws Exception {
+            return work(chunk);
+        }
+
+        @Override
+        protected Long reduce(List<Long> partials) throws Exception {
+            long sum = 0;
+            for (Long partial : partials) {
+                sum += partial;
+            }
+            return sum;
+        }
+
+        @Override
+        protected void onTaskSuccess(Long result) {
+            this.result = result;
+            done.countDown();
+        }
+
+        @Override
+        protected void onTaskError(Exception e) {
+            this.error = e;
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void speedupOverSingleThread() throws Exception {
+        List<Integer> inputs = inputs();
+        //预热
+        work(inputs);
+        runParallel(inputs, ThreadUtils.COMPUTE_THREAD_SIZE);
+
+        long begin = System.nanoTime();
+        long expected = work(inputs);
+        long singleNanos = System.nanoTime() - begin;
+        Log.i(TAG, "direct " + singleNanos / 1000000 + "ms");
+
+        for (int threads = 1; threads <= ThreadUtils.COMPUTE_THREAD_SIZE; threads++) {
+            begin = System.nanoTime();
+            SumTask task = runParallel(inputs, threads);
+            long parallelNanos = System.nanoTime() - begin;
+
+            assertNull(task.error);
+            assertEquals(Long.valueOf(expected), task.result);
+            Log.i(TAG, threads + " threads " + parallelNanos / 1000000 + "ms, speedup "
+                    + (singleNanos * 100 / Math.max(1, parallelNanos)) / 100.0);
+        }
+    }
+
+    @Test
+    public void errorInChunkFailsTask() throws Exception {
+        SumTask task = new SumTask(inputs()) {
+            @Override
+            protected Long processChunk(List<Integer> chunk) throws Exception {
+                if (chunk.contains(INPUT_SIZE - 1)) {
+                    throw new AssertionError("chunk failed");
+                }
+                return super.processChunk(chunk);
+            }
+        };
+        ATaskExecutor.executeComputeTask(this, task);
+        assertTrue(task.done.await(60, TimeUnit.SECONDS));
+        assertNull(task.result);
+        assertNotNull(task.error);
+    }
+
+    private SumTask runParallel(List<Integer> inputs, int threads) throws InterruptedException {
+        SumTask task = new SumTask(inputs, threads);
+        ATaskExecutor.executeComputeTask(this, task);
+        assertTrue(task.done.await(60, TimeUnit.SECONDS));
+        return task;
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.p0sitive.autils.task;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多线程提交吞吐：1到N个提交线程同时调用{@link ThreadUtils#execute(int, Runnable)}。<p/>
+ * 同时跑一遍外面套一把全局锁的提交，对比改之前synchronized static的写法
+ */
+@RunWith(AndroidJUnit4.class)
+public class SubmitThroughputBenchmarkTest {
+    private static final String TAG = "SubmitBenchmark";
+
+    private static final int SUBMITS_PER_THREAD = 20000;
+    private static final Object GLOBAL_LOCK = new Object();
+
+    private final AtomicInteger executed = new AtomicInteger();
+
+    private final Runnable counter = new Runnable() {
+        @Override
+        public void run() {
+            executed.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void submissionThroughputScales() throws Exception {
+        int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        //预热，创建线程池和工作线程
+        measure(1, false);
+
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            long lockFree = measure(threads, false);
+            long locked = measure(threads, true);
+            Log.i(TAG, threads + " submitters: " + lockFree + " submits/ms, with global lock " + locked + " submits/ms");
+            if (threads == maxThreads) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return 每毫秒提交数
+     */
+    private long measure(int threads, final boolean globalLock) throws Exception {
+        final int total = threads * SUBMITS_PER_THREAD;
+        executed.set(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch submitted = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread("submitter-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < SUBMITS_PER_THREAD; i++) {
+                        if (globalLock) {
+                            synchronized (GLOBAL_LOCK) {
+                                ThreadUtils.execute(ThreadUtils.TYPE_INNER, counter);
+                            }
+                        } else {
+                            ThreadUtils.execute(ThreadUtils.TYPE_INNER, counter);
+                        }
+                    }
+                    submitted.countDown();
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        assertTrue(submitted.await(60, TimeUnit.SECONDS));
+        long elapsedNanos = System.nanoTime() - begin;
+
+        //等全部执行完，不影响下一轮
+        long deadline = System.currentTimeMillis() + 60 * 1000;
+        while (executed.get() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(total, executed.get());
+        return total * 1000000L / Math.max(1, elapsedNanos);
+    }
+}
@@ -0,0 +1,160 @@
+package com.github.p0sitive.autils.task;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 稳定状态下Task的execute → run → deliver不分配对象。<p/>
+ * 计数是进程全局的，工作线程在队列上等待时JDK的条件节点、主线程消息等也会计入，
+ * 所以同样的次数再用一个普通的JDK线程池 + Handler跑一遍作为下限，两者之差就是本库在任务路径上的分配，必须为0。
+ * 差值只允许少量其他线程的噪声，远小于执行次数，任何一次执行分配一个对象都会失败。<p/>
+ * 范围只在还有任务时复用，新建范围是tag的开销而不是任务路径的，所以测量期间用一个延时任务让tag的范围保持存活。
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskAllocationTest {
+    private static final String TAG_LOG = "TaskAllocation";
+
+    private static final int WARM_UP_RUNS = 200;
+    private static final int MEASURED_RUNS = 500;
+    private static final int NOISE = 32;
+
+    private static final Object TAG = new Object();
+    private static final Object RESULT = new Object();
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile int delivered;
+
+    /** 让TAG的范围在测量期间一直有存活的延时任务 */
+    private final Runnable anchor = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            delivered++;
+        }
+    };
+
+    private ThreadPoolExecutor plainPool;
+
+    private class NoopTask extends ATaskExecutor.Task<Void, Void, Object> {
+        @Override
+        protected Object executeTask(Void... params) throws Exception {
+            return RESULT;
+        }
+
+        @Override
+        protected void onTaskSuccess(Object result) {
+            delivered++;
+        }
+    }
+
+    /**
+     * 和任务一样在优先级队列中排队，执行完post到主线程
+     */
+    private class PlainRunnable implements Runnable, Comparable<PlainRunnable> {
+        @Override
+        public void run() {
+            mainHandler.post(deliver);
+        }
+
+        @Override
+        public int compareTo(PlainRunnable another) {
+            return 0;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        ATaskExecutor.executeDelayTask(TAG, anchor, 1, TimeUnit.HOURS);
+        plainPool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+    }
+
+    @After
+    public void tearDown() {
+        ATaskExecutor.cancelDelayTask(TAG, anchor);
+        plainPool.shutdownNow();
+    }
+
+    @Test
+    public void steadyStateLifecycleDoesNotAllocate() throws Exception {
+        runTasks(createTasks(WARM_UP_RUNS));
+        runPlain(createPlain(WARM_UP_RUNS));
+
+        NoopTask[] tasks = createTasks(MEASURED_RUNS);
+        Debug.resetGlobalAllocCount();
+        Debug.startAllocCounting();
+        runTasks(tasks);
+        Debug.stopAllocCounting();
+        int taskAllocations = Debug.getGlobalAllocCount();
+
+        PlainRunnable[] plain = createPlain(MEASURED_RUNS);
+        Debug.resetGlobalAllocCount();
+        Debug.startAllocCounting();
+        runPlain(plain);
+        Debug.stopAllocCounting();
+        int floorAllocations = Debug.getGlobalAllocCount();
+
+        int extra = taskAllocations - floorAllocations;
+        Log.i(TAG_LOG, MEASURED_RUNS + " runs: task path " + taskAllocations + " allocations, plain executor "
+                + floorAllocations + ", extra " + extra);
+        assertTrue("task path allocated " + extra + " more than a plain executor over " + MEASURED_RUNS + " runs",
+                extra <= NOISE);
+    }
+
+    private NoopTask[] createTasks(int count) {
+        NoopTask[] tasks = new NoopTask[count];
+        for (int i = 0; i < count; i++) {
+            tasks[i] = new NoopTask();
+        }
+        return tasks;
+    }
+
+    private PlainRunnable[] createPlain(int count) {
+        PlainRunnable[] runnables = new PlainRunnable[count];
+        for (int i = 0; i < count; i++) {
+            runnables[i] = new PlainRunnable();
+        }
+        return runnables;
+    }
+
+    /**
+     * 一次只执行一个，覆盖最常见的用法
+     */
+    private void runTasks(NoopTask[] tasks) throws InterruptedException {
+        for (NoopTask task : tasks) {
+            int expected = delivered + 1;
+            ATaskExecutor.executeInnerTask(TAG, task);
+            while (delivered < expected) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private void runPlain(PlainRunnable[] runnables) throws InterruptedException {
+        for (PlainRunnable runnable : runnables) {
+            int expected = delivered + 1;
+            plainPool.execute(runnable);
+            while (delivered < expected) {
+                Thread.sleep(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.p0sitive.autils;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 根据Activity的started数量维护前后台状态，生命周期回调都在主线程，计数只在主线程修改，读只需要读一个volatile字段。<p/>
+ * 旋转屏幕等配置变化时Activity会先stop再start，不当作切到后台。
+ * 注册之前已经started的Activity不会被计数，所以需要在Application.onCreate中通过{@link AppContext#init(android.content.Context)}注册，
+ * 在收到第一个started/stopped事件之前{@link #getState()}返回{@link #STATE_UNKNOWN}。
+ */
+class ForegroundTracker implements Application.ActivityLifecycleCallbacks {
+    private static final String TAG = "ForegroundTracker";
+
+    static final int STATE_UNKNOWN = 0;
+    static final int STATE_FOREGROUND = 1;
+    static final int STATE_BACKGROUND = 2;
+
+    private volatile int state = STATE_UNKNOWN;
+
+    //以下只在主线程读写
+    private int startedCount;
+    /** 因配置变化stop的Activity数，随后重新start时不再计数 */
+    private int changingConfigCount;
+
+    private final CopyOnWriteArrayList<AppContext.OnForegroundChangedListener> listeners = new CopyOnWriteArrayList<>();
+
+    int getState() {
+        return state;
+    }
+
+    void addListener(AppContext.OnForegroundChangedListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    void removeListener(AppContext.OnForegroundChangedListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        if (changingConfigCount > 0) {
+            changingConfigCount--;
+        } else {
+            startedCount++;
+        }
+        update();
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        if (activity.isChangingConfigurations()) {
+            changingConfigCount++;
+        } else if (startedCount > 0) {
+            startedCount--;
+        }
+        update();
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+    }
+
+    private void update() {
+        boolean foreground = startedCount > 0 || changingConfigCount > 0;
+        int newState = foreground ? STATE_FOREGROUND : STATE_BACKGROUND;
+        int oldState = state;
+        if (newState == oldState) {
+            return;
+        }
+        state = newState;
+        if (oldState == STATE_UNKNOWN) {
+            //刚开始跟踪，不知道之前的状态，不算切换
+            return;
+        }
+        for (AppContext.OnForegroundChangedListener listener : listeners) {
+            try {
+                listener.onForegroundChanged(foreground);
+            } catch (Exception e) {
+                Log.e(TAG, "onForegroundChanged failed", e);
+            }
+        }
+    }
+}
@@ -2,24 +2,101 @@ package com.github.p0sitive.autils.task;
 
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
+import android.os.Message;
+import android.os.MessageQueue;
+import android.os.SystemClock;
 
 
-import java.util.Collections;
-import java.util.List;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.WeakHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
- * 调用 postDelayed后，注意一定要在页面销毁或者逻辑结束时调用cancelSpecificRunnable或cancelAllRunnables方法
- *
+ * 调用 postDelayed后，注意一定要在页面销毁或者逻辑结束时调用cancelSpecificRunnable或cancelAllRunnables方法。
+ * 以Activity作为tag并开启了{@link ATaskExecutor#enableLifecycleCancel(android.app.Application)}时，Activity销毁会自动取消
+ * <p/>
+ * 每个tag对应一个token，带tag post的Runnable都以token作为消息的token，取消整个tag只需要一次
+ * {@link Handler#removeCallbacksAndMessages(Object)}。Runnable执行后自动移出登记，tag下没有待执行的Runnable时token也一起回收。<p/>
+ * 预加载View、预热缓存、上报统计等可以推迟的工作用{@link #postIdle(Object, Runnable)}，只在主线程空闲时执行。<p/>
+ * 输入、滚动等高频事件用{@link #debounce}、{@link #throttle}、{@link #coalesce}，每个key只占一个待执行消息，
+ * 事件再多也只更新这个消息要执行的Runnable和时间，不再反复post和remove。
  */
 public class AMainThreadExecutor {
 
     private static Handler handler;
 
-    private static final Map<Object, List<Runnable>> runnablesMap = Collections.synchronizedMap(new WeakHashMap<Object, List<Runnable>>());
+    /** 所有登记信息都受这个锁保护，锁内只有O(1)的操作 */
+    private static final Object sLock = new Object();
+
+    private static final Map<Object, TagToken> tokens = new WeakHashMap<>();
+
+    private static final long DEFAULT_IDLE_BUDGET_MILLIS = 4;
+    /** 还有空闲任务没执行完时，隔这么久发一个空消息，让主线程再进入一次空闲 */
+    private static final long IDLE_NUDGE_DELAY_MILLIS = 16;
+
+    /** 等待空闲执行的任务，受sLock保护 */
+    private static final ArrayDeque<TrackedRunnable> idleQueue = new ArrayDeque<>();
+    /** IdleHandler是否已经注册或正在注册，受sLock保护 */
+    private static boolean idleHandlerRegistered;
+    private static volatile long idleBudgetMillis = DEFAULT_IDLE_BUDGET_MILLIS;
+
+    private static final int MODE_DEBOUNCE = 1;
+    private static final int MODE_THROTTLE = 2;
+    private static final int MODE_COALESCE = 3;
+
+    /** debounce、throttle、coalesce的key，执行完且没有新事件时移除，受sLock保护 */
+    private static final HashMap<Object, KeyedAction> keyedActions = new HashMap<>();
+
+    /**
+     * 一个tag下所有待执行的Runnable，作为消息的token；只弱引用tag，不影响tag被回收
+     */
+    private static class TagToken {
+        final WeakReference<Object> tag;
+        final HashMap<Runnable, TrackedRunnable> pending = new HashMap<>();
+        /** 整个tag已取消，受sLock保护 */
+        boolean cancelled;
+
+        TagToken(Object tag) {
+            this.tag = new WeakReference<>(tag);
+        }
+    }
+
+    /**
+     * 实际post到Handler的包装，执行时先把自己移出登记。同一个tag下重复post同一个Runnable时共用一个包装
+     */
+    private static class TrackedRunnable implements Runnable {
+        final TagToken token;
+        final Runnable runnable;
+        /** 已经post还没执行的次数，受sLock保护 */
+        int count;
+        /** 已取消，还在空闲队列中的直接跳过，受sLock保护 */
+        boolean cancelled;
+
+        TrackedRunnable(TagToken token, Runnable runnable) {
+            this.token = token;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (sLock) {
+                if (cancelled || token.cancelled) {
+                    return;
+                }
+                if (--count == 0) {
+                    untrack(this);
+                }
+            }
+            long start = MainLooperMonitor.enter();
+            try {
+                runnable.run();
+            } finally {
+                MainLooperMonitor.exit(MainLooperMonitor.ORIGIN_MAIN_THREAD_EXECUTOR, token.tag.get(), start);
+            }
+        }
+    }
 
     /**
      * 使用全局Main Thread handler来post一直Runnable
@@ -40,13 +117,8 @@ public class AMainThreadExecutor {
         if (runnable == null) {
             throw new IllegalArgumentException("runnable is null");
         }
-        List<Runnable> runnables = runnablesMap.get(tag);
-        if (runnables == null) {
-            runnables = new CopyOnWriteArrayList<>();
-            runnablesMap.put(tag, runnables);
-        }
-        runnables.add(runnable);
-        getHandler().post(runnable);
+        TrackedRunnable tracked = track(tag, runnable);
+        getHandler().postAtTime(tracked, tracked.token, SystemClock.uptimeMillis());
     }
 
     public static void postAtFrontOfQueue(Object tag, Runnable runnable) {
@@ -57,13 +129,11 @@ public class AMainThreadExecutor {
             throw new IllegalArgumentException("runnable is null");
         }
 
-        List<Runnable> runnables = runnablesMap.get(tag);
-        if (runnables == null) {
-            runnables = new CopyOnWriteArrayList<>();
-            runnablesMap.put(tag, runnables);
-        }
-        runnables.add(runnable);
-        getHandler().postAtFrontOfQueue(runnable);
+        TrackedRunnable tracked = track(tag, runnable);
+        Handler h = getHandler();
+        Message message = Message.obtain(h, tracked);
+        message.obj = tracked.token;
+        h.sendMessageAtFrontOfQueue(message);
     }
 
     public static void postDelayed(Object tag, Runnable runnable, long delayMill) {
@@ -77,15 +147,8 @@ public class AMainThreadExecutor {
             throw new IllegalArgumentException("delayMill <= 0");
         }
 
-        List<Runnable> runnables = runnablesMap.get(tag);
-        if (runnables == null) {
-            runnables = new CopyOnWriteArrayList<>();
-            runnablesMap.put(tag, runnables);
-        }
-        if (!runnables.contains(runnable)) {
-            runnables.add(runnable);
-        }
-        getHandler().postDelayed(runnable, delayMill);
+        TrackedRunnable tracked = track(tag, runnable);
+        getHandler().postAtTime(tracked, tracked.token, SystemClock.uptimeMillis() + delayMill);
     }
 
     public static void cancelSpecificRunnable(Object tag, Runnable runnable) {
@@ -96,36 +159,346 @@ public class AMainThreadExecutor {
             throw new IllegalArgumentException("runnable is null");
         }
 
-        List<Runnable> runnables = runnablesMap.get(tag);
-        if (runnables != null) {
-            if (runnables.contains(runnable)) {
-                getHandler().removeCallbacks(runnable);
-                try {
-                    runnables.remove(runnable);
-                } catch (UnsupportedOperationException e) {
-                    Log.e("","",e);
+        TrackedRunnable tracked;
+        synchronized (sLock) {
+            TagToken token = tokens.get(tag);
+            if (token == null) {
+                return;
+            }
+            tracked = token.pending.get(runnable);
+            if (tracked == null) {
+                return;
+            }
+            tracked.count = 0;
+            tracked.cancelled = true;
+            untrack(tracked);
+        }
+        getHandler().removeCallbacks(tracked, tracked.token);
+    }
+
+    public static void cancelAllRunnables(Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("tag is null");
+        }
+        TagToken token;
+        synchronized (sLock) {
+            token = tokens.remove(tag);
+            if (token == null) {
+                return;
+            }
+            token.pending.clear();
+            token.cancelled = true;
+        }
+        getHandler().removeCallbacksAndMessages(token);
+    }
+
+    /**
+     * 同一个key最后一次调用后delayMillis内没有新的调用才执行，执行的是最后一次传入的runnable
+     */
+    public static void debounce(Object key, long delayMillis, Runnable runnable) {
+        if (delayMillis <= 0) {
+            throw new IllegalArgumentException("delayMillis <= 0");
+        }
+        onKeyedEvent(key, MODE_DEBOUNCE, delayMillis, true, true, runnable);
+    }
+
+    /**
+     * 同一个key每intervalMillis最多执行一次
+     *
+     * @param leading  窗口内第一次调用立即执行
+     * @param trailing 窗口内之后的调用合并成一次，在窗口结束时执行最后一次传入的runnable
+     */
+    public static void throttle(Object key, long intervalMillis, boolean leading, boolean trailing, Runnable runnable) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("intervalMillis <= 0");
+        }
+        if (!leading && !trailing) {
+            throw new IllegalArgumentException("leading and trailing are both false");
+        }
+        onKeyedEvent(key, MODE_THROTTLE, intervalMillis, leading, trailing, runnable);
+    }
+
+    /**
+     * 同一个key在主线程下一次处理到它之前的多次调用合并成一次，执行最后一次传入的runnable，
+     * 适合一帧内多次触发的刷新
+     */
+    public static void coalesce(Object key, Runnable runnable) {
+        onKeyedEvent(key, MODE_COALESCE, 0, true, false, runnable);
+    }
+
+    /**
+     * 取消key还没执行的debounce、throttle、coalesce
+     */
+    public static void cancelKeyed(Object key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        KeyedAction action;
+        synchronized (sLock) {
+            action = keyedActions.remove(key);
+            if (action == null) {
+                return;
+            }
+            action.latest = null;
+            action.pending = false;
+            action.scheduledTime = 0;
+        }
+        getHandler().removeCallbacks(action);
+    }
+
+    private static void onKeyedEvent(Object key, int mode, long interval, boolean leading, boolean trailing, Runnable runnable) {
+        if (key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        if (runnable == null) {
+            throw new IllegalArgumentException("runnable is null");
+        }
+        long now = SystemClock.uptimeMillis();
+        KeyedAction toSchedule;
+        long when;
+        synchronized (sLock) {
+            KeyedAction action = keyedActions.get(key);
+            if (action == null || action.mode != mode) {
+                if (action != null) {
+                    getHandler().removeCallbacks(action);
                 }
+                action = new KeyedAction(key, mode, interval);
+                keyedActions.put(key, action);
+            }
+            action.interval = interval;
+            if (!action.accept(runnable, now, leading, trailing)) {
+                return;
+            }
+            //已经有更早的消息在排队时不再post，消息执行时发现还没到时间会自己顺延
+            if (action.scheduledTime != 0 && action.scheduledTime <= action.dueTime) {
+                return;
+            }
+            if (action.scheduledTime != 0) {
+                getHandler().removeCallbacks(action);
+            }
+            action.scheduledTime = action.dueTime;
+            toSchedule = action;
+            when = action.dueTime;
+        }
+        getHandler().postAtTime(toSchedule, when);
+    }
+
+    /**
+     * 一个key的唯一待执行消息
+     */
+    private static class KeyedAction implements Runnable {
+        final Object key;
+        final int mode;
+        long interval;
+        /** 以下字段都受sLock保护 */
+        Runnable latest;
+        boolean pending;
+        /** latest应该执行的时间 */
+        long dueTime;
+        /** 已经post的消息的执行时间，0表示没有消息在排队 */
+        long scheduledTime;
+        /** throttle窗口的结束时间 */
+        long windowEnd;
+
+        KeyedAction(Object key, int mode, long interval) {
+            this.key = key;
+            this.mode = mode;
+            this.interval = interval;
+        }
+
+        /**
+         * @return 需要执行时返回true，dueTime已更新
+         */
+        boolean accept(Runnable runnable, long now, boolean leading, boolean trailing) {
+            switch (mode) {
+                case MODE_DEBOUNCE:
+                    latest = runnable;
+                    pending = true;
+                    dueTime = now + interval;
+                    return true;
+                case MODE_THROTTLE:
+                    if (pending && dueTime <= now) {
+                        //前一次马上就要执行，合并进去
+                        latest = runnable;
+                        return true;
+                    }
+                    if (now >= windowEnd && !pending) {
+                        windowEnd = now + interval;
+                        latest = runnable;
+                        pending = true;
+                        dueTime = leading ? now : windowEnd;
+                        return true;
+                    }
+                    if (!trailing) {
+                        return false;
+                    }
+                    latest = runnable;
+                    pending = true;
+                    dueTime = windowEnd;
+                    return true;
+                case MODE_COALESCE:
+                default:
+                    latest = runnable;
+                    if (!pending) {
+                        pending = true;
+                        dueTime = now;
+                    }
+                    return true;
             }
+        }
 
-            if (runnables.isEmpty()) {
-                runnablesMap.remove(tag);
+        @Override
+        public void run() {
+            Runnable toRun;
+            long reschedule = 0;
+            synchronized (sLock) {
+                scheduledTime = 0;
+                long now = SystemClock.uptimeMillis();
+                if (!pending) {
+                    if (keyedActions.get(key) == this) {
+                        keyedActions.remove(key);
+                    }
+                    return;
+                }
+                if (now < dueTime) {
+                    //排队期间又有新事件把时间推后了，顺延同一个消息
+                    scheduledTime = dueTime;
+                    reschedule = dueTime;
+                    toRun = null;
+                } else {
+                    toRun = latest;
+                    latest = null;
+                    pending = false;
+                    if (mode == MODE_THROTTLE) {
+                        //窗口结束时再执行一次同一个消息：有trailing就执行，没有就移除key
+                        windowEnd = now + interval;
+                        scheduledTime = windowEnd;
+                        reschedule = windowEnd;
+                    } else if (keyedActions.get(key) == this) {
+                        keyedActions.remove(key);
+                    }
+                }
+            }
+            if (reschedule != 0) {
+                getHandler().postAtTime(this, reschedule);
+            }
+            if (toRun != null) {
+                long start = MainLooperMonitor.enter();
+                try {
+                    toRun.run();
+                } finally {
+                    MainLooperMonitor.exit(MainLooperMonitor.ORIGIN_MAIN_THREAD_EXECUTOR, key, start);
+                }
             }
         }
     }
 
-    public static void cancelAllRunnables(Object tag) {
+    /**
+     * 在主线程空闲时执行，每次空闲最多执行{@link #setIdleBudget(long)}毫秒，执行不完的留到下一次空闲。
+     * 按post的顺序执行，不保证执行时间，可以用tag取消
+     */
+    public static void postIdle(Object tag, Runnable runnable) {
         if (tag == null) {
             throw new IllegalArgumentException("tag is null");
         }
-        List<Runnable> runnables = runnablesMap.get(tag);
-        if (runnables != null) {
-            for (Runnable runnable : runnables) {
-                getHandler().removeCallbacks(runnable);
+        if (runnable == null) {
+            throw new IllegalArgumentException("runnable is null");
+        }
+
+        TrackedRunnable tracked = track(tag, runnable);
+        boolean register;
+        synchronized (sLock) {
+            idleQueue.add(tracked);
+            register = !idleHandlerRegistered;
+            idleHandlerRegistered = true;
+        }
+        if (register) {
+            //IdleHandler只能在主线程注册到主线程的队列
+            getHandler().post(registerIdleHandler);
+        }
+    }
+
+    /**
+     * 每次主线程空闲时执行空闲任务的时间上限，默认4ms，超过后剩下的任务等下一次空闲
+     */
+    public static void setIdleBudget(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("millis <= 0");
+        }
+        idleBudgetMillis = millis;
+    }
+
+    private static final Runnable idleNudge = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static final MessageQueue.IdleHandler idleHandler = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            long deadline = SystemClock.uptimeMillis() + idleBudgetMillis;
+            for (;;) {
+                TrackedRunnable next;
+                synchronized (sLock) {
+                    next = idleQueue.poll();
+                    if (next == null) {
+                        idleHandlerRegistered = false;
+                        return false;
+                    }
+                }
+                next.run();
+                if (SystemClock.uptimeMillis() >= deadline) {
+                    break;
+                }
             }
+            //主线程一直没有新消息时不会再次空闲，发一个空消息推一下
+            Handler h = getHandler();
+            h.removeCallbacks(idleNudge);
+            h.postDelayed(idleNudge, IDLE_NUDGE_DELAY_MILLIS);
+            return true;
         }
+    };
 
-        runnablesMap.remove(tag);
+    private static final Runnable registerIdleHandler = new Runnable() {
+        @Override
+        public void run() {
+            Looper.myQueue().addIdleHandler(idleHandler);
+        }
+    };
+
+    private static TrackedRunnable track(Object tag, Runnable runnable) {
+        synchronized (sLock) {
+            TagToken token = tokens.get(tag);
+            if (token == null) {
+                token = new TagToken(tag);
+                tokens.put(tag, token);
+            }
+            TrackedRunnable tracked = token.pending.get(runnable);
+            if (tracked == null) {
+                tracked = new TrackedRunnable(token, runnable);
+                token.pending.put(runnable, tracked);
+            }
+            tracked.count++;
+            return tracked;
+        }
+    }
 
+    /**
+     * 调用方持有sLock
+     */
+    private static void untrack(TrackedRunnable tracked) {
+        TagToken token = tracked.token;
+        if (token.pending.get(tracked.runnable) != tracked) {
+            return;
+        }
+        token.pending.remove(tracked.runnable);
+        if (token.pending.isEmpty()) {
+            Object tag = token.tag.get();
+            if (tag != null && tokens.get(tag) == token) {
+                tokens.remove(tag);
+            }
+        }
     }
 
     private static Handler getHandler() {
@@ -1,21 +1,24 @@
 package com.github.p0sitive.autils.task;
 
+import android.app.Application;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.github.p0sitive.autils.AppContext;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  *
@@ -27,19 +30,56 @@ public class ATaskExecutor {
     public static final int EXECUTOR_TYPE_USER = 0;
     /** 无用户感知的任务队列 优先级低于user*/
     public static final int EXECUTOR_TYPE_INNER = 1;
+    /** 文件、DB等本地操作的任务队列，与user任务分开限制并发*/
+    public static final int EXECUTOR_TYPE_LOCAL = 2;
+    /** CPU密集的计算任务队列，线程数等于CPU核数，见{@link ParallelTask}*/
+    public static final int EXECUTOR_TYPE_COMPUTE = 3;
 
-    private static final Map<Object, List<Task>> runningTasks = new ConcurrentHashMap<>();
 
-    private static final Map<Object, WeakHashMap<Runnable, ExecutorService>> scheduledTaskMap = new WeakHashMap<>();
+    private static final TaskResultCache resultCache = new TaskResultCache();
 
+    /**
+     * 在产生结果的后台线程直接回调，见{@link Task#setCallbackExecutor(Executor)}
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
 
     private static ICommonTaskErrorProcessor taskErrorProcessor;
 
+    private static TaskLifecycleCallbacks lifecycleCallbacks;
+
     public static void setCommonTaskErrorProcessor(ICommonTaskErrorProcessor taskErrorProcessor) {
         ATaskExecutor.taskErrorProcessor = taskErrorProcessor;
     }
 
 
+    /**
+     * 开启后以Activity作为tag的任务、延时任务和{@link AMainThreadExecutor}中的Runnable会在Activity销毁时自动取消，
+     * 不需要再手动调用{@link #cancelScope(Object)}；Activity暂停期间提交的user任务改为在inner线程池执行。
+     * 一般通过{@link AppContext#init(android.content.Context, boolean)}开启
+     */
+    public static synchronized void enableLifecycleCancel(Application application) {
+        if (application == null) {
+            throw new IllegalArgumentException("application is null");
+        }
+        if (lifecycleCallbacks != null) {
+            return;
+        }
+        lifecycleCallbacks = new TaskLifecycleCallbacks();
+        application.registerActivityLifecycleCallbacks(lifecycleCallbacks);
+    }
+
+    /**
+     * 任务结果缓存，见{@link Task#getCacheKey()}
+     */
+    public static TaskResultCache getResultCache() {
+        return resultCache;
+    }
+
     public static void executeUserTask(Object tag, Task task) {
         executeTask(EXECUTOR_TYPE_USER, tag, task);
     }
@@ -48,7 +88,30 @@ public class ATaskExecutor {
         executeTask(EXECUTOR_TYPE_INNER, tag, task);
     }
 
+    public static void executeLocalTask(Object tag, Task task) {
+        executeTask(EXECUTOR_TYPE_LOCAL, tag, task);
+    }
+
+    public static void executeComputeTask(Object tag, Task task) {
+        executeTask(EXECUTOR_TYPE_COMPUTE, tag, task);
+    }
+
     public static void executeTask(int type, Object tag, Task task) {
+        executeTask(type, tag, null, task);
+    }
+
+    /**
+     * 串行执行：同一个serialKey的任务按提交顺序逐个执行，不同serialKey之间并行。
+     * 取消tag时，该tag下还在排队的串行任务会直接移出队列并回调onCancelled
+     */
+    public static void executeSerialTask(int type, Object tag, Object serialKey, Task task) {
+        if(serialKey == null) {
+            throw new IllegalArgumentException("serialKey is null");
+        }
+        executeTask(type, tag, serialKey, task);
+    }
+
+    private static void executeTask(int type, Object tag, Object serialKey, Task task) {
         if(tag == null) {
             throw new IllegalArgumentException("tag is null");
         }
@@ -56,28 +119,64 @@ public class ATaskExecutor {
             throw new IllegalArgumentException("task is null");
         }
 
-        task.onPreTask();
+        if(task.scope != null) {
+            throw new IllegalStateException("task already executed");
+        }
+
+        if (task.graphNode == null) {
+            //图中的任务由TaskGraph决定是否调用，下游在上游的工作线程提交，不能在这里回调
+            task.onPreTask();
+        }
         task.tag = tag;
         if (AppContext.DEBUGGABLE) {
             Log.i("","task[" + task.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : execute");
         }
-        if (type == EXECUTOR_TYPE_USER) {
-            ThreadUtils.execute(ThreadUtils.TYPE_RIGHT_NOW, task);
+        if (type == EXECUTOR_TYPE_USER && !TaskScope.isPaused(tag)) {
+            task.threadType = ThreadUtils.TYPE_RIGHT_NOW;
+        } else if (type == EXECUTOR_TYPE_LOCAL) {
+            task.threadType = ThreadUtils.TYPE_RIGHT_NOW_LOCAL;
+        } else if (type == EXECUTOR_TYPE_COMPUTE) {
+            task.threadType = ThreadUtils.TYPE_COMPUTE;
         } else {
-            ThreadUtils.execute(ThreadUtils.TYPE_INNER, task);
+            task.threadType = ThreadUtils.TYPE_INNER;
         }
+        task.serialKey = serialKey;
+        task.qos = task.getQos();
+        //先登记再提交，避免任务在登记前就执行完，留下取消不掉的记录
+        TaskScope.register(tag, task);
 
-        List<Task> tasks = runningTasks.get(tag);
-        if(tasks == null) {
-            tasks = new CopyOnWriteArrayList<>();
+        if (serialKey != null) {
+            KeyedSerialExecutor.execute(task.threadType, serialKey, task);
+            return;
         }
-        tasks.add(task);
 
-        runningTasks.put(tag, tasks);
+        task.cacheKey = task.getCacheKey();
+        if (task.cacheKey != null && task.deliverFromCache()) {
+            return;
+        }
 
+        Object coalesceKey = task.graphNode == null ? task.getCoalesceKey() : null;
+        if (coalesceKey != null && !CoalescedCall.joinOrLead(coalesceKey, task)) {
+            //已经有相同key的任务在执行，等它的结果即可；执行中的是inner预取时把它提到user的优先级
+            task.coalescedCall.leader.promote(task);
+            return;
+        }
+        ThreadUtils.execute(task.threadType, task);
     }
 
+    /**
+     * 延时执行runnable，到点后在{@link ThreadUtils#TYPE_RIGHT_NOW}线程池中执行
+     */
     public static void executeDelayTask(Object tag, Runnable runnable, long delay, TimeUnit timeUnit) {
+        executeDelayTask(tag, runnable, delay, timeUnit, ThreadUtils.TYPE_RIGHT_NOW);
+    }
+
+    /**
+     * 延时执行runnable，所有延时任务共用一个计时线程，到点后交给threadType对应的线程池执行
+     *
+     * @param threadType {@link ThreadUtils#TYPE_INNER}、{@link ThreadUtils#TYPE_RIGHT_NOW}等
+     */
+    public static void executeDelayTask(Object tag, Runnable runnable, long delay, TimeUnit timeUnit, int threadType) {
         if(tag == null) {
             throw new IllegalArgumentException("tag is null");
         }
@@ -88,17 +187,10 @@ public class ATaskExecutor {
             throw new IllegalArgumentException("delay <= 0");
         }
 
-        ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-        WeakHashMap<Runnable, ExecutorService> runnableMap = new WeakHashMap<>();
-        runnableMap.put(runnable, scheduledExecutorService);
-
-        scheduledTaskMap.put(tag, runnableMap);
-
-        scheduledExecutorService.schedule(runnable, delay, timeUnit);
-
+        DelayTaskScheduler.schedule(tag, runnable, delay, timeUnit, threadType);
     }
 
-    public void cancelDelayTask(Object tag, Runnable runnable) {
+    public static void cancelDelayTask(Object tag, Runnable runnable) {
         if(tag == null) {
             throw new IllegalArgumentException("tag is null");
         }
@@ -106,59 +198,53 @@ public class ATaskExecutor {
             throw new IllegalArgumentException("runnable is null");
         }
 
-        Map<Runnable, ExecutorService> runnableMap = scheduledTaskMap.get(tag);
-        if(runnableMap == null) {
-            return;
-        }
+        DelayTaskScheduler.cancel(tag, runnable);
+    }
 
-        ExecutorService executorService = runnableMap.get(runnable);
-        if(executorService != null) {
-            if(!executorService.isTerminated()) {
-                executorService.shutdownNow();
-                runnableMap.remove(runnable);
-                if(runnableMap.isEmpty()) {
-                    scheduledTaskMap.remove(tag);
-                }
-            }
+    public static void cancelAllDelayTasks(Object tag) {
+        if(tag == null) {
+            throw new IllegalArgumentException("tag is null");
         }
 
+        DelayTaskScheduler.cancelAll(tag);
     }
 
-    public void cancelAllDelayTasks(Object tag) {
-        if(tag == null) {
+    /**
+     * 把childTag的任务范围挂到parentTag下，取消parentTag时childTag的任务和延时任务一起取消，可以多层嵌套。
+     * 绑定关系在childTag被回收前一直有效
+     */
+    public static void bindScope(Object parentTag, Object childTag) {
+        if(parentTag == null || childTag == null) {
             throw new IllegalArgumentException("tag is null");
         }
 
-        Map<Runnable, ExecutorService> runnableMap = scheduledTaskMap.get(tag);
-        if(runnableMap == null) {
-            return;
-        }
+        TaskScope.bind(parentTag, childTag);
+    }
 
-        for(WeakHashMap.Entry<Runnable, ExecutorService> entry : runnableMap.entrySet()) {
-            ExecutorService service = entry.getValue();
-            if(!service.isTerminated()) {
-                service.shutdownNow();
-            }
+    /**
+     * 取消tag及其所有子范围下执行中、排队中的任务和延时任务，通常在Activity、Fragment销毁时调用
+     */
+    public static void cancelScope(Object tag) {
+        if(tag == null) {
+            throw new IllegalArgumentException("tag is null");
+        }
+        TaskScope scope = TaskScope.get(tag);
+        if(scope != null) {
+            scope.cancel(true);
         }
-
-        runnableMap.clear();
-        scheduledTaskMap.remove(tag);
     }
 
+    /**
+     * 取消tag及其所有子范围下执行中、排队中的任务，延时任务不受影响
+     */
     public static void cancleAllTasksByTag(Object tag) {
         if(tag == null) {
             throw new IllegalArgumentException("tag is null");
         }
-        List<Task> tasks = runningTasks.get(tag);
-        if(tasks != null) {
-            for(Task runningTask : tasks) {
-                runningTask.cancel(true);
-            }
-            tasks.clear();
+        TaskScope scope = TaskScope.get(tag);
+        if(scope != null) {
+            scope.cancel(false);
         }
-
-        runningTasks.remove(tag);
-
     }
 
     public static void cancleSpecificTask(Object tag, Task task) {
@@ -170,30 +256,75 @@ public class ATaskExecutor {
         }
 
         task.cancel(true);
-        List<Task> tasks = runningTasks.get(tag);
-        if(tasks != null) {
-            try {
-                tasks.remove(task);
-            } catch (UnsupportedOperationException e) {
-                Log.e(TAG,"",e);
-            }
-            if(tasks.isEmpty()) {
-                runningTasks.remove(tag);
-            }
-        }
+        task.removeFromSerialQueue();
     }
 
     public static abstract class Task<Params, Progress, Result> implements Runnable, IInterruptable {
 
         private static TaskHandler handler;
 
+        private static final long DEFAULT_PROGRESS_INTERVAL = 16;
+
+        /** 每次执行至少连续占用线程这么久才考虑让出，避免频繁切换 */
+        private static final long MIN_SLICE_NANOS = 50 * 1000 * 1000L;
+        /** 两次检查队列之间的最小间隔 */
+        private static final long CHECKPOINT_INTERVAL_NANOS = 5 * 1000 * 1000L;
+        /** checkpoint让出线程时抛出，不带堆栈，只在run中识别 */
+        private static final RuntimeException YIELD = new YieldSignal();
+
+        private static final AtomicReferenceFieldUpdater<Task, Object[]> PENDING_PROGRESS =
+                AtomicReferenceFieldUpdater.newUpdater(Task.class, Object[].class, "pendingProgress");
+        private static final AtomicIntegerFieldUpdater<Task> PROGRESS_SCHEDULED =
+                AtomicIntegerFieldUpdater.newUpdater(Task.class, "progressScheduled");
+
         private Params[] mParams;
 
         private volatile boolean isInterrupted;
         private volatile boolean isCancelled;
 
-        private volatile long threadId;
+        /** 正在执行executeTask的线程，受this锁保护，执行完立即清空 */
+        private Thread runner;
+        /** 取消时需要关闭的IO，受this锁保护 */
+        private List<Closeable> closeables;
         private Object tag;
+        /** 实际执行的线程池，{@link ThreadUtils#TYPE_INNER}等 */
+        int threadType;
+        /** 执行时的QoS，提交时从{@link #getQos()}取得 */
+        int qos;
+        /** 提交到线程池时的包装。任务同一时间只在一个队列中，每次提交复用这一个，不再分配 */
+        final MeteredRunnable metered = new MeteredRunnable(this);
+        /** 本次执行的开始时间和下一次检查队列的时间，只在执行线程读写 */
+        private long sliceStart;
+        private long nextCheckpoint;
+        /** 让出次数、累计执行时间、每次让出时累计执行时间之和，用于估算让出节省的等待时间 */
+        private int yieldCount;
+        private long runNanos;
+        private long runNanosAtYields;
+        /** 被提升后的系统优先级，受this锁保护，{@link Integer#MIN_VALUE}表示没有提升 */
+        private int promotedPriority = Integer.MIN_VALUE;
+        /** 执行线程因页面暂停被降低了优先级，受this锁保护 */
+        private boolean demoted;
+        /** 结果回调所在的Executor，null表示主线程 */
+        private volatile Executor callbackExecutor;
+        private Object serialKey;
+        private volatile CoalescedCall coalescedCall;
+        private Object cacheKey;
+        /** 正在后台刷新缓存，不再回调 */
+        private volatile boolean isRefreshing;
+
+        /** 还没送到主线程的最新进度 */
+        private volatile Object[] pendingProgress;
+        /** 是否已经有进度消息在主线程队列中 */
+        private volatile int progressScheduled;
+        private volatile long lastProgressTime;
+        volatile boolean isFinished;
+
+        /** 所在的范围，提交前设置 */
+        TaskScope scope;
+        /** 同一范围中下一个任务，由{@link TaskScope}维护 */
+        volatile Task nextInScope;
+        /** 所属的{@link TaskGraph}节点，不在图中时为null */
+        TaskGraph.Node graphNode;
 
         public Task() {
             this.isCancelled = false;
@@ -205,11 +336,56 @@ public class ATaskExecutor {
             this.mParams = params;
         }
 
-        private static class AsyncResult<Params, Progress> {
+        /**
+         * 后台结果的载体，用完回收复用
+         */
+        static class AsyncResult<Params, Progress> implements Runnable {
+            private static final int MAX_POOL_SIZE = 32;
+            private static final Object sPoolSync = new Object();
+            private static AsyncResult sPool;
+            private static int sPoolSize = 0;
+
             Task task;
             Params result;
-            Progress[] progress;
             Throwable exception;
+            long postTime;
+            private AsyncResult next;
+
+            @SuppressWarnings("unchecked")
+            static <Params, Progress> AsyncResult<Params, Progress> obtain() {
+                synchronized (sPoolSync) {
+                    if (sPool != null) {
+                        AsyncResult r = sPool;
+                        sPool = r.next;
+                        r.next = null;
+                        sPoolSize--;
+                        return r;
+                    }
+                }
+                return new AsyncResult<>();
+            }
+
+            void recycle() {
+                task = null;
+                result = null;
+                exception = null;
+                postTime = 0;
+                synchronized (sPoolSync) {
+                    if (sPoolSize < MAX_POOL_SIZE) {
+                        next = sPool;
+                        sPool = this;
+                        sPoolSize++;
+                    }
+                }
+            }
+
+            /**
+             * 通过callbackExecutor投递时直接作为Runnable执行，不再额外包一层
+             */
+            @Override
+            public void run() {
+                dispatchResult(this);
+            }
         }
 
         public final void cancel(boolean interrupt) {
@@ -217,9 +393,21 @@ public class ATaskExecutor {
                 return;
             }
             isCancelled = true;
+            PoolMetrics metrics = ThreadUtils.getMetrics(threadType);
+            if (metrics != null) {
+                metrics.onCancelled();
+            }
+            CoalescedCall call = coalescedCall;
+            if (call != null) {
+                //合并执行的任务只退订自己，还有其他调用方时共享的执行不能停
+                finish();
+                if (!call.unsubscribe(this) && interrupt) {
+                    call.leader.interrupt();
+                }
+                return;
+            }
             if(interrupt && !isInterrupted) {
                 interrupt();
-                killRuningHttpConnection();
             }
 
         }
@@ -231,49 +419,236 @@ public class ATaskExecutor {
             if(tag == null) {
                 return;
             }
+            synchronized (this) {
+                if (isFinished) {
+                    return;
+                }
+                isFinished = true;
+            }
 
             if(isCancelled()) {
-                AsyncResult<Result, Progress> result = new AsyncResult<>();
-                result.task = this;
-
                 Message message = Message.obtain();
                 message.what = TaskHandler.MSG_TYPE_CANCLE;
-                message.obj = result;
+                message.obj = this;
 
                 getHandler().sendMessage(message);
             }
 
-            List<Task> tasks = runningTasks.get(tag);
-            if(tasks != null) {
-                try {
-                    tasks.remove(this);
-                } catch (UnsupportedOperationException e) {
-                    Log.e(TAG,"",e);
+            TaskScope s = scope;
+            if (s != null) {
+                s.onTaskFinished();
+            }
+        }
+
+        /**
+         * 还在串行队列中排队的任务直接移出，不再占用队列
+         */
+        void removeFromSerialQueue() {
+            if (serialKey != null && KeyedSerialExecutor.remove(serialKey, this)) {
+                finish();
+            }
+        }
+
+        /**
+         * inner线程池中的任务被更高优先级的requester合并时调用：还在排队就移到requester的线程池，
+         * 已经在执行就把执行线程的优先级提到requester的QoS
+         */
+        void promote(Task requester) {
+            if (threadType != ThreadUtils.TYPE_INNER || requester.threadType == ThreadUtils.TYPE_INNER) {
+                return;
+            }
+            int toQos = requester.qos == ThreadUtils.QOS_DEFAULT ? ThreadUtils.defaultQos(requester.threadType) : requester.qos;
+            synchronized (this) {
+                if (promotedPriority != Integer.MIN_VALUE) {
+                    return;
                 }
-                if(tasks.isEmpty()) {
-                    runningTasks.remove(tag);
+                promotedPriority = ThreadUtils.toThreadPriority(toQos);
+            }
+            if (ThreadUtils.removeQueued(threadType, this)) {
+                threadType = requester.threadType;
+                qos = toQos;
+                ThreadUtils.execute(threadType, this);
+                return;
+            }
+            synchronized (this) {
+                if (runner instanceof AThread) {
+                    ((AThread) runner).boost(promotedPriority);
                 }
             }
         }
 
+        /**
+         * 所在页面暂停时调用：还在user线程池或它的溢出队列中排队就移到inner线程池，
+         * 已经在执行就把执行线程降到inner的优先级，页面恢复时由{@link #restorePriority()}恢复
+         */
+        void demote() {
+            if (threadType != ThreadUtils.TYPE_RIGHT_NOW || isFinished) {
+                return;
+            }
+            int toQos = ThreadUtils.defaultQos(ThreadUtils.TYPE_INNER);
+            if (ThreadUtils.removeQueued(threadType, this)) {
+                threadType = ThreadUtils.TYPE_INNER;
+                qos = toQos;
+                ThreadUtils.execute(threadType, this);
+                return;
+            }
+            synchronized (this) {
+                if (runner instanceof AThread) {
+                    demoted = true;
+                    ((AThread) runner).lower(ThreadUtils.toThreadPriority(toQos));
+                }
+            }
+        }
+
+        /**
+         * 页面恢复时把{@link #demote()}降低的执行线程优先级恢复到任务自己的QoS，已经移到inner线程池的任务不再移回
+         */
+        void restorePriority() {
+            synchronized (this) {
+                if (!demoted) {
+                    return;
+                }
+                demoted = false;
+                if (runner instanceof AThread) {
+                    int fromQos = qos == ThreadUtils.QOS_DEFAULT ? ThreadUtils.defaultQos(threadType) : qos;
+                    ((AThread) runner).boost(ThreadUtils.toThreadPriority(fromQos));
+                }
+            }
+        }
+
+        /**
+         * 线程池拒绝执行，按执行失败回调onTaskError，合并执行时所有调用方都会收到
+         */
+        void onRejected() {
+            CoalescedCall call = coalescedCall;
+            if (call != null) {
+                call.close();
+            }
+            TaskGraph.Node node = graphNode;
+            if (isInterrupted) {
+                finish();
+            } else {
+                AsyncResult<Result, Progress> result = AsyncResult.obtain();
+                result.exception = new RejectedExecutionException("task rejected");
+                result.task = this;
+
+                postResult(result);
+            }
+            if (node != null) {
+                node.onCompleted(null, false);
+            }
+        }
+
+        /**
+         * 关闭取消前登记的IO，让阻塞在上面的线程尽快返回
+         */
         private void killRuningHttpConnection() {
+            List<Closeable> toClose;
+            synchronized (this) {
+                toClose = closeables;
+                closeables = null;
+            }
+            if (toClose == null) {
+                return;
+            }
+            for (Closeable closeable : toClose) {
+                closeQuietly(closeable);
+            }
+        }
+
+        private static void closeQuietly(Closeable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                Log.w(TAG, "close on cancel failed", e);
+            }
         }
 
+        /**
+         * 登记executeTask中用到的socket、流、Cursor等，任务被取消时会被关闭，阻塞在上面的读写会立即返回。
+         * 正常执行完后登记自动清空，关闭仍由调用方负责
+         */
+        protected final void registerCloseable(Closeable closeable) {
+            if (closeable == null) {
+                return;
+            }
+            synchronized (this) {
+                if (!isInterrupted) {
+                    if (closeables == null) {
+                        closeables = new ArrayList<>(2);
+                    }
+                    closeables.add(closeable);
+                    return;
+                }
+            }
+            closeQuietly(closeable);
+        }
+
+        protected final void unregisterCloseable(Closeable closeable) {
+            synchronized (this) {
+                if (closeables != null) {
+                    closeables.remove(closeable);
+                }
+            }
+        }
+
+        /**
+         * 中断执行：打断正在执行executeTask的线程，并关闭登记的IO
+         */
         @Override
         public void interrupt() {
             isInterrupted = true;
+            synchronized (this) {
+                if (runner != null) {
+                    runner.interrupt();
+                }
+            }
+            killRuningHttpConnection();
         }
 
         @Override
         public void run() {
-            Log.i(TAG,"task[" + this.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : run");
+            if (AppContext.DEBUGGABLE) {
+                Log.i(TAG,"task[" + this.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : run");
+            }
+            TaskGraph.Node node = graphNode;
             if(isInterrupted){
                 finish();
+                if (node != null) {
+                    node.onCompleted(null, false);
+                }
                 return;
             }
 
+            if (node != null) {
+                node.onStarted();
+            }
             long startTime = System.currentTimeMillis();
+            sliceStart = System.nanoTime();
+            nextCheckpoint = sliceStart + MIN_SLICE_NANOS;
             AsyncResult<Result, Progress> result = doInBackground(mParams);
+            if (result.exception == YIELD) {
+                //重新排队，轮到时从头再调用executeTask
+                result.recycle();
+                PoolMetrics metrics = ThreadUtils.getMetrics(threadType);
+                if (metrics != null) {
+                    metrics.onYielded();
+                }
+                ThreadUtils.execute(threadType, this);
+                return;
+            }
+            if (yieldCount > 0) {
+                runNanos += System.nanoTime() - sliceStart;
+                PoolMetrics metrics = ThreadUtils.getMetrics(threadType);
+                if (metrics != null) {
+                    metrics.onYieldSaved(yieldCount * runNanos - runNanosAtYields);
+                }
+            }
+            CoalescedCall call = coalescedCall;
+            if (call != null) {
+                //结果已经出来，之后相同key的提交重新执行
+                call.close();
+            }
             if (AppContext.DEBUGGABLE) {
                 Log.i(TAG,"task[" + this.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : doInBackground costs " + (System.currentTimeMillis() - startTime));
             }
@@ -282,16 +657,69 @@ public class ATaskExecutor {
                 if (AppContext.DEBUGGABLE) {
                     Log.i(TAG,"task[" + this.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : isInterrupted, finish");
                 }
+                result.recycle();
                 finish();
+                if (node != null) {
+                    node.onCompleted(null, false);
+                }
                 return;
             }
 
+            Object value = result.result;
+            boolean success = result.exception == null;
+            postResult(result);
+            if (node != null) {
+                //结果已经发往主线程，在当前线程直接提交下游
+                node.onCompleted(value, success);
+            }
+        }
+
+        /**
+         * 把后台结果送到主线程
+         */
+        private void postResult(AsyncResult<?, ?> result) {
+            result.postTime = System.nanoTime();
+            Executor executor = callbackExecutor;
+            if (executor != null) {
+                executor.execute(result);
+                return;
+            }
+            if (isFrameBatched()) {
+                FrameBatchDispatcher.enqueue(result);
+                return;
+            }
             Message message = Message.obtain();
             message.what = TaskHandler.MSG_TYPE_POST_EXECUTE;
             message.obj = result;
-
             getHandler().sendMessage(message);
+        }
 
+        /**
+         * 回调结果，之后回收result
+         */
+        static void dispatchResult(AsyncResult<?, ?> result) {
+            Task task = result.task;
+            PoolMetrics metrics = ThreadUtils.getMetrics(task.threadType);
+            if (metrics != null) {
+                metrics.onDelivered(System.nanoTime() - result.postTime);
+            }
+            long start = MainLooperMonitor.enter();
+            try {
+                if(task.isInterrupted) {
+                    if (AppContext.DEBUGGABLE) {
+                        Log.i(TAG,"task[" + task.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : handleMessage isInterrupted, finish");
+                    }
+                    task.finish();
+                } else {
+                    if (AppContext.DEBUGGABLE) {
+                        Log.i(TAG,"task[" + task.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : handleMessage onPostExecute");
+                    }
+                    task.onPostExecute(result);
+                }
+            } finally {
+                MainLooperMonitor.exit(MainLooperMonitor.ORIGIN_TASK, task.getClass(), start);
+                result.recycle();
+            }
         }
 
         protected static Handler getHandler() {
@@ -316,6 +744,21 @@ public class ATaskExecutor {
 
             @Override
             public void handleMessage(Message msg) {
+                if (msg.what == MSG_TYPE_PROGRESS_UPDATE || msg.what == MSG_TYPE_CANCLE) {
+                    Task task = (Task) msg.obj;
+                    long start = MainLooperMonitor.enter();
+                    try {
+                        if (msg.what == MSG_TYPE_PROGRESS_UPDATE) {
+                            task.dispatchProgress();
+                        } else {
+                            task.onCancelled();
+                        }
+                    } finally {
+                        MainLooperMonitor.exit(MainLooperMonitor.ORIGIN_TASK, task.getClass(), start);
+                    }
+                    return;
+                }
+
                 AsyncResult<?,?> result = (AsyncResult<?,?>)msg.obj;
 
                 if (result == null || result.task == null) {
@@ -323,38 +766,192 @@ public class ATaskExecutor {
                     return;
                 }
 
-                Task task = result.task;
                 if(msg.what == MSG_TYPE_POST_EXECUTE) {
-                    if(result.task.isInterrupted) {
-                        Log.i(TAG,"task[" + result.task.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : handleMessage isInterrupted, finish");
-                        result.task.finish();
-                    } else {
-                        Log.i(TAG,"task[" + result.task.getClass().getName() + "] / thread[" + Thread.currentThread().getName() + "] : handleMessage onPostExecute");
-                        task.onPostExecute(result);
-                    }
-
-                } else if(msg.what == MSG_TYPE_PROGRESS_UPDATE) {
-                    if(!result.task.isInterrupted) {
-                        task.onProgressUpdate(result.progress);
-                    }
-                } else if(msg.what == MSG_TYPE_CANCLE) {
-                    task.onCancelled();
+                    dispatchResult(result);
                 }
             }
         }
 
+        /**
+         * 指定onTaskFinish、onTaskSuccess、onTaskError在哪里回调，需要在提交前调用。<p/>
+         * 默认null在主线程回调；{@link ATaskExecutor#DIRECT_EXECUTOR}在执行任务的后台线程直接回调，
+         * 适合多个后台步骤串联时省掉往返主线程。onCancelled和onProgressUpdate仍在主线程回调
+         */
+        public final Task<Params, Progress, Result> setCallbackExecutor(Executor executor) {
+            this.callbackExecutor = executor;
+            return this;
+        }
+
         public final boolean isCancelled() {
             return isCancelled;
         }
 
+        /**
+         * 合并执行时，只有所有调用方都取消了才算取消
+         */
+        private boolean isWorkCancelled() {
+            return coalescedCall != null ? isInterrupted : isCancelled;
+        }
+
+        /**
+         * 返回非null时缓存执行结果，有效期内再次执行直接回调缓存的结果，不再执行executeTask
+         */
+        protected Object getCacheKey() {
+            return null;
+        }
+
+        /**
+         * 缓存结果的有效期，单位毫秒
+         */
+        protected long getCacheTtl() {
+            return 60 * 1000;
+        }
+
+        /**
+         * 返回true时，缓存过期后仍然先回调缓存的结果，同时在{@link ThreadUtils#TYPE_INNER}线程池中刷新缓存，
+         * 刷新结果只更新缓存，不再回调
+         */
+        protected boolean isStaleWhileRevalidate() {
+            return false;
+        }
+
+        /**
+         * @return 有缓存可用时返回true，结果已经发往主线程
+         */
+        private boolean deliverFromCache() {
+            final TaskResultCache.CachedResult entry = resultCache.lookup(cacheKey, isStaleWhileRevalidate());
+            if (entry == null) {
+                return false;
+            }
+
+            AsyncResult<Object, Progress> result = AsyncResult.obtain();
+            result.result = entry.value;
+            result.task = this;
+
+            postResult(result);
+            if (graphNode != null) {
+                graphNode.onCompleted(entry.value, true);
+            }
+
+            if (entry.isStale() && entry.refreshing.compareAndSet(false, true)) {
+                isRefreshing = true;
+                ThreadUtils.execute(ThreadUtils.TYPE_INNER, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            resultCache.put(cacheKey, executeTask(mParams), getCacheTtl());
+                        } catch (Throwable e) {
+                            Log.e(TAG, "refresh cache failed, key=" + cacheKey, e);
+                        } finally {
+                            entry.refreshing.set(false);
+                        }
+                    }
+                });
+            }
+            return true;
+        }
+
+        /**
+         * 执行时工作线程的优先级，{@link ThreadUtils#QOS_USER_INTERACTIVE}等；
+         * 默认{@link ThreadUtils#QOS_DEFAULT}使用线程池的默认QoS
+         */
+        protected int getQos() {
+            return ThreadUtils.QOS_DEFAULT;
+        }
+
+        /**
+         * 返回true时结果不再单独发消息，而是和同一帧内完成的其他任务一起在下一次vsync时批量回调，
+         * 适合列表项等短时间内大量完成的任务
+         */
+        protected boolean isFrameBatched() {
+            return false;
+        }
+
+        /**
+         * 在{@link TaskGraph}中执行时，读取上游任务的结果，只能在executeTask中调用
+         *
+         * @param dependency add到图中时声明的依赖
+         */
+        @SuppressWarnings("unchecked")
+        protected final <R> R getDependencyResult(Task<?, ?, R> dependency) {
+            TaskGraph.Node node = graphNode;
+            TaskGraph.Node dep = dependency == null ? null : dependency.graphNode;
+            if (node == null || dep == null || !node.dependencies.contains(dep)) {
+                throw new IllegalArgumentException(dependency + " is not a dependency of " + this);
+            }
+            return (R) dep.value;
+        }
+
+        /**
+         * 返回非null时开启合并执行：相同key的任务正在执行时，后提交的任务不再执行，
+         * 直接共享正在执行的结果，每个调用方都会收到各自的onTaskSuccess或onTaskError。
+         * 某个调用方取消只影响它自己，所有调用方都取消后才会中断共享的执行。串行任务不参与合并。<p/>
+         * 用inner提交的预取任务被相同key的user任务合并时会被提升：还在排队的移到user线程池，已经在执行的提高线程优先级
+         */
+        protected Object getCoalesceKey() {
+            return null;
+        }
+
         protected abstract Result executeTask(Params... params) throws Exception;
 
+        /**
+         * 在executeTask的循环中定期调用：任务已取消时抛出{@link CancellationException}；
+         * 连续执行超过50ms并且同一线程池中有更高优先级的任务在排队时让出线程，任务重新排队，轮到时再次调用executeTask。<p/>
+         * 调用了checkpoint的任务需要把进度保存在自己的字段里，再次执行时从上次的位置继续。
+         * 串行任务和不在executeTask所在线程上的调用只检查取消。<p/>
+         * 让出和取消都通过抛出RuntimeException实现，不要在checkpoint外面catch Exception或RuntimeException，
+         * 否则会吞掉让出信号和取消，需要catch时把RuntimeException原样抛出
+         */
+        protected final void checkpoint() {
+            if (isWorkCancelled() || isInterrupted) {
+                throw new CancellationException("task canceled");
+            }
+            if (serialKey != null || runner != Thread.currentThread()) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (now < nextCheckpoint) {
+                return;
+            }
+            nextCheckpoint = now + CHECKPOINT_INTERVAL_NANOS;
+            int currentQos = qos == ThreadUtils.QOS_DEFAULT ? ThreadUtils.defaultQos(threadType) : qos;
+            if (!ThreadUtils.hasWaitingAbove(threadType, ThreadUtils.toThreadPriority(currentQos))) {
+                return;
+            }
+            runNanos += now - sliceStart;
+            runNanosAtYields += runNanos;
+            yieldCount++;
+            throw YIELD;
+        }
+
         private final AsyncResult<Result, Progress> doInBackground(Params... params) {
-            AsyncResult<Result, Progress> result = new AsyncResult<>();
+            AsyncResult<Result, Progress> result = AsyncResult.obtain();
             try {
-                if(!isCancelled()) {
-                    threadId = Thread.currentThread().getId();
-                    result.result = executeTask(params);
+                boolean cancelled;
+                synchronized (this) {
+                    cancelled = isWorkCancelled();
+                    if (!cancelled) {
+                        runner = Thread.currentThread();
+                        if (promotedPriority != Integer.MIN_VALUE && runner instanceof AThread) {
+                            //从队列取出后、开始执行前被提升的
+                            ((AThread) runner).boost(promotedPriority);
+                        }
+                    }
+                }
+                if(!cancelled) {
+                    try {
+                        result.result = executeTask(params);
+                    } finally {
+                        synchronized (this) {
+                            runner = null;
+                            closeables = null;
+                        }
+                        //清掉取消时打的中断标记，不能带到这个线程执行的下一个任务
+                        Thread.interrupted();
+                    }
+                    if (cacheKey != null) {
+                        resultCache.put(cacheKey, result.result, getCacheTtl());
+                    }
                 } else {
                     result.exception = new Exception("task already canceled");
                 }
@@ -365,21 +962,73 @@ public class ATaskExecutor {
             return result;
         }
 
+        /**
+         * 进度会合并：主线程还没取走的进度直接被最新的覆盖，两次回调之间至少间隔{@link #getProgressInterval()}。
+         * 最后一次进度在结果回调之前送达，结果回调之后不再回调进度
+         */
         protected final void publishProgress(Progress... progress) {
-            if (!isCancelled()) {
-                AsyncResult<Result, Progress> result = new AsyncResult<>();
-                result.progress = progress;
-                result.task = this;
+            if (!isCancelled() && !isRefreshing) {
+                pendingProgress = progress;
+                if (PROGRESS_SCHEDULED.compareAndSet(this, 0, 1)) {
+                    Message message = Message.obtain();
+                    message.what = TaskHandler.MSG_TYPE_PROGRESS_UPDATE;
+                    message.obj = this;
+
+                    long deliverTime = Math.max(lastProgressTime + getProgressInterval(), SystemClock.uptimeMillis());
+                    getHandler().sendMessageAtTime(message, deliverTime);
+                }
+            }
+        }
 
-                Message message = Message.obtain();
-                message.what = TaskHandler.MSG_TYPE_PROGRESS_UPDATE;
-                message.obj = result;
+        /**
+         * 两次{@link #onProgressUpdate(Object[])}之间的最小间隔，单位毫秒，默认一帧
+         */
+        protected long getProgressInterval() {
+            return DEFAULT_PROGRESS_INTERVAL;
+        }
 
-                getHandler().sendMessage(message);
+        private void dispatchProgress() {
+            //先清标记再取进度，取走之后发布的进度会重新发消息
+            progressScheduled = 0;
+            Object[] progress = PENDING_PROGRESS.getAndSet(this, null);
+            lastProgressTime = SystemClock.uptimeMillis();
+            if (progress != null && !isInterrupted && !isFinished) {
+                onProgressUpdate((Progress[]) progress);
+            }
+        }
+
+        /**
+         * 回调结果之前处理还没送出的进度：在主线程直接回调最后一次进度，保证进度在结果之前；
+         * 结果在其他线程回调时丢弃，onProgressUpdate只在主线程回调
+         */
+        private void flushProgress() {
+            if (progressScheduled == 0 && pendingProgress == null) {
+                return;
+            }
+            getHandler().removeMessages(TaskHandler.MSG_TYPE_PROGRESS_UPDATE, this);
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                dispatchProgress();
+            } else {
+                progressScheduled = 0;
+                pendingProgress = null;
             }
         }
 
         private final void onPostExecute(AsyncResult<Result, Progress> result) {
+            CoalescedCall call = coalescedCall;
+            if (call != null) {
+                for (Task subscriber : call.takeSubscribers()) {
+                    if (!subscriber.isCancelled()) {
+                        subscriber.deliverResult(result);
+                    }
+                }
+                return;
+            }
+            deliverResult(result);
+        }
+
+        private void deliverResult(AsyncResult<Result, Progress> result) {
+            flushProgress();
             finish();
             onTaskFinish();
             if(result.exception == null) {
@@ -415,6 +1064,98 @@ public class ATaskExecutor {
 
     }
 
+    /**
+     * 一次合并执行：leader真正执行，其余相同key的任务订阅它的结果
+     */
+    private static class CoalescedCall {
+        private static final ConcurrentHashMap<Object, CoalescedCall> inFlightCalls = new ConcurrentHashMap<>();
+
+        private final Object key;
+        private final Task leader;
+        private final List<Task> subscribers = new ArrayList<>();
+        private boolean closed;
+
+        private CoalescedCall(Object key, Task leader) {
+            this.key = key;
+            this.leader = leader;
+            this.subscribers.add(leader);
+        }
+
+        /**
+         * @return true表示task成为leader，需要真正执行；false表示已订阅正在执行的任务
+         */
+        static boolean joinOrLead(Object key, Task task) {
+            for (;;) {
+                CoalescedCall call = inFlightCalls.get(key);
+                if (call == null) {
+                    call = new CoalescedCall(key, task);
+                    task.coalescedCall = call;
+                    if (inFlightCalls.putIfAbsent(key, call) == null) {
+                        return true;
+                    }
+                    task.coalescedCall = null;
+                } else if (call.leader.callbackExecutor != task.callbackExecutor) {
+                    //回调位置不同的任务不能共享一次回调，各自执行
+                    return true;
+                } else if (call.subscribe(task)) {
+                    return false;
+                } else {
+                    inFlightCalls.remove(key, call);
+                }
+            }
+        }
+
+        private synchronized boolean subscribe(Task task) {
+            if (closed) {
+                return false;
+            }
+            task.coalescedCall = this;
+            subscribers.add(task);
+            return true;
+        }
+
+        /**
+         * @return 还有其他调用方时返回true
+         */
+        boolean unsubscribe(Task task) {
+            synchronized (this) {
+                subscribers.remove(task);
+                if (!subscribers.isEmpty()) {
+                    return true;
+                }
+            }
+            close();
+            return false;
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            inFlightCalls.remove(key, this);
+        }
+
+        synchronized List<Task> takeSubscribers() {
+            List<Task> result = new ArrayList<>(subscribers);
+            subscribers.clear();
+            return result;
+        }
+    }
+
+}
+
+class YieldSignal extends RuntimeException {
+    YieldSignal() {
+        super("task yield");
+    }
+
+    /**
+     * 不需要堆栈；RuntimeException(String, Throwable, boolean, boolean)要API 24才有
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
 }
 
 interface IInterruptable {
@@ -0,0 +1,222 @@
+package com.github.p0sitive.autils.task;
+
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThreadUtils使用的线程池。<p/>
+ * 线程数达到上限后，新任务先进入有界的溢出队列，工作线程每执行完一个任务就会把溢出队列里的任务取出来执行；
+ * 溢出队列也满了之后按{@link #setOverflowPolicy(int)}设置的策略处理，每一次拒绝都会计数。
+ */
+class AThreadPoolExecutor extends ThreadPoolExecutor {
+    private static final String TAG = "AThreadPoolExecutor";
+
+    /** 溢出队列入队后用来唤醒空闲线程，本身什么都不做 */
+    private static final Runnable KICK = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static final ThreadLocal<AThreadPoolExecutor> currentPool = new ThreadLocal<>();
+    /** 不能阻塞也不能自己执行任务的分发线程，溢出队列满时一律按FAIL_FAST拒绝 */
+    private static final ThreadLocal<Boolean> dispatcherThread = new ThreadLocal<>();
+
+    private final int type;
+    private final PoolMetrics metrics;
+    private final BlockingQueue<Runnable> overflowQueue;
+
+    private volatile int overflowPolicy = ThreadUtils.OVERFLOW_POLICY_FAIL_FAST;
+    private volatile IRejectedListener rejectedListener;
+
+    /**
+     * @param overflowCapacity 溢出队列容量，<=0表示没有溢出队列
+     */
+    AThreadPoolExecutor(int type, int corePoolSize, int maximumPoolSize, long keepAliveTime, TimeUnit unit,
+                        BlockingQueue<Runnable> workQueue, int overflowCapacity, PoolMetrics metrics) {
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, new AThreadFactory(type));
+        this.type = type;
+        this.metrics = metrics;
+        this.overflowQueue = overflowCapacity > 0 ? new ArrayBlockingQueue<Runnable>(overflowCapacity) : null;
+        setRejectedExecutionHandler(new OverflowHandler());
+    }
+
+    void setOverflowPolicy(int overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    void setRejectedListener(IRejectedListener rejectedListener) {
+        this.rejectedListener = rejectedListener;
+    }
+
+    /**
+     * 把当前线程标记为分发线程，例如延时调度的计时线程：它被阻塞或执行任务时，后面所有到点的任务都会被拖住
+     */
+    static void markDispatcherThread() {
+        dispatcherThread.set(Boolean.TRUE);
+    }
+
+    int getOverflowSize() {
+        return overflowQueue == null ? 0 : overflowQueue.size();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        execute(command, ThreadUtils.QOS_DEFAULT);
+    }
+
+    /**
+     * @param qos {@link ThreadUtils#QOS_DEFAULT}时，{@link ATaskExecutor.Task}使用任务自己的QoS，其余使用线程池的默认QoS
+     */
+    void execute(Runnable command, int qos) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (command != KICK) {
+            if (qos == ThreadUtils.QOS_DEFAULT && command instanceof ATaskExecutor.Task) {
+                qos = ((ATaskExecutor.Task) command).qos;
+            }
+            if (qos == ThreadUtils.QOS_DEFAULT) {
+                qos = ThreadUtils.defaultQos(type);
+            }
+            metrics.onSubmitted();
+            MeteredRunnable metered = command instanceof ATaskExecutor.Task
+                    ? ((ATaskExecutor.Task) command).metered : new MeteredRunnable(command);
+            command = metered.prepare(metrics, ThreadUtils.toThreadPriority(qos));
+        }
+        super.execute(command);
+    }
+
+    /**
+     * 排在队首的任务是否比threadPriority优先级更高，优先级队列的队首就是优先级最高的任务
+     */
+    boolean hasWaitingAbove(int threadPriority) {
+        return isAbove(getQueue().peek(), threadPriority) || (overflowQueue != null && isAbove(overflowQueue.peek(), threadPriority));
+    }
+
+    private static boolean isAbove(Runnable r, int threadPriority) {
+        return r instanceof MeteredRunnable && ((MeteredRunnable) r).threadPriority < threadPriority;
+    }
+
+    /**
+     * 把还在工作队列或溢出队列中的runnable移出，用于把任务移到其他线程池，不计为取消；取消只在{@link ATaskExecutor.Task#cancel(boolean)}中计数
+     */
+    boolean removeQueued(Runnable runnable) {
+        return removeQueued(getQueue(), runnable) || (overflowQueue != null && removeQueued(overflowQueue, runnable));
+    }
+
+    private boolean removeQueued(BlockingQueue<Runnable> queue, Runnable runnable) {
+        for (Runnable r : queue) {
+            if (MeteredRunnable.unwrap(r) == runnable && queue.remove(r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        if (overflowQueue != null && currentPool.get() != this) {
+            currentPool.set(this);
+        }
+        super.beforeExecute(t, r);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (overflowQueue == null) {
+            return;
+        }
+        Runnable next;
+        while (!isShutdown() && (next = overflowQueue.poll()) != null) {
+            try {
+                next.run();
+            } catch (Throwable e) {
+                Log.e(TAG, "overflow task failed", e);
+            }
+        }
+    }
+
+    private void reject(Runnable r) {
+        Runnable task = MeteredRunnable.unwrap(r);
+        if (task instanceof KeyedSerialExecutor.SerialQueue) {
+            for (Runnable pending : ((KeyedSerialExecutor.SerialQueue) task).drainOnRejected()) {
+                reject(pending);
+            }
+            return;
+        }
+        metrics.rejectedCount.incrementAndGet();
+        Log.e(TAG, "Task " + r.toString() + " rejected from " + toString(), null);
+        IRejectedListener listener = rejectedListener;
+        if (listener != null) {
+            listener.onTaskRejected(type, task);
+        }
+        if (task instanceof ATaskExecutor.Task) {
+            ((ATaskExecutor.Task) task).onRejected();
+        }
+    }
+
+    private void runOnCaller(Runnable r) {
+        metrics.callerRunsCount.incrementAndGet();
+        r.run();
+    }
+
+    private class OverflowHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (r == KICK) {
+                //所有线程都在忙，溢出队列里的任务会在某个线程执行完后被取走
+                return;
+            }
+            if (isShutdown() || overflowQueue == null) {
+                reject(r);
+                return;
+            }
+
+            if (!overflowQueue.offer(r)) {
+                int policy = dispatcherThread.get() != null ? ThreadUtils.OVERFLOW_POLICY_FAIL_FAST : overflowPolicy;
+                switch (policy) {
+                    case ThreadUtils.OVERFLOW_POLICY_BLOCK:
+                        if (currentPool.get() == AThreadPoolExecutor.this) {
+                            //本池的线程阻塞等待本池可能导致死锁，改为直接执行
+                            runOnCaller(r);
+                            return;
+                        }
+                        try {
+                            overflowQueue.put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            reject(r);
+                            return;
+                        }
+                        break;
+                    case ThreadUtils.OVERFLOW_POLICY_CALLER_RUNS:
+                        runOnCaller(r);
+                        return;
+                    case ThreadUtils.OVERFLOW_POLICY_DISCARD_OLDEST:
+                        while (!overflowQueue.offer(r)) {
+                            Runnable oldest = overflowQueue.poll();
+                            if (oldest != null) {
+                                metrics.discardedCount.incrementAndGet();
+                                reject(oldest);
+                            }
+                        }
+                        break;
+                    case ThreadUtils.OVERFLOW_POLICY_FAIL_FAST:
+                    default:
+                        reject(r);
+                        return;
+                }
+            }
+            metrics.overflowedCount.incrementAndGet();
+            //入队前可能刚好所有线程都空闲了，用KICK唤醒一个线程来取溢出队列
+            execute(KICK);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.p0sitive.autils.task;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link TaskFlow}的一个并行分支。提交到线程池的同时，等待方在join时如果发现分支还没开始，会直接在自己的线程执行，
+ * 所以线程池满或者分支嵌套分支时不会因为互相等待而死锁
+ */
+class BranchRunner<T> implements Runnable {
+    private final ATaskExecutor.Task owner;
+    private final TaskFlow<? extends T> flow;
+    /** 线程池和等待方谁先拿到谁执行 */
+    private final AtomicBoolean claimed = new AtomicBoolean();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private T value;
+    /** 包括Error，否则分支失败时join会返回null */
+    private Throwable error;
+
+    private BranchRunner(ATaskExecutor.Task owner, TaskFlow<? extends T> flow) {
+        this.owner = owner;
+        this.flow = flow;
+    }
+
+    static <T> BranchRunner<T> start(ATaskExecutor.Task owner, TaskFlow<? extends T> flow) {
+        BranchRunner<T> runner = new BranchRunner<>(owner, flow);
+        ThreadUtils.execute(owner.threadType, owner.qos, runner);
+        return runner;
+    }
+
+    @Override
+    public void run() {
+        if (claimed.compareAndSet(false, true)) {
+            evaluate();
+        }
+    }
+
+    private void evaluate() {
+        try {
+            TaskFlow.checkCancelled(owner);
+            value = flow.evaluate(owner);
+        } catch (Throwable e) {
+            error = e;
+        } finally {
+            done.countDown();
+        }
+    }
+
+    T join() throws Exception {
+        if (claimed.compareAndSet(false, true)) {
+            evaluate();
+        } else {
+            done.await();
+        }
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new Exception(error);
+        }
+        return value;
+    }
+}
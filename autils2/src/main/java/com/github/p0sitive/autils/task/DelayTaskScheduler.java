@@ -0,0 +1,126 @@
+package com.github.p0sitive.autils.task;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 全局共享的延时调度器，只占用一个计时线程。<p/>
+ * 计时线程只负责"到点"，到点后把Runnable交给{@link ThreadUtils}的线程池执行，
+ * 所以延时任务再多，线程数也不会增长。<p/>
+ * 延时任务登记在tag对应的{@link TaskScope}中，取消父范围时一起取消；
+ * 取消时立即把计时项移出计时队列（通过堆下标，O(log n)），反复重新计时的长延时任务不会在队列里堆积。
+ * setRemoveOnCancelPolicy需要API 21，所以这里手动移除。<p/>
+ * 计时线程不是线程池的工作线程，交给线程池时不会等待也不会自己执行：溢出队列满时无论溢出策略如何都直接拒绝，
+ * 由{@link IRejectedListener}和{@link ATaskExecutor.Task}的拒绝回调处理，不会拖住后面到点的任务。
+ */
+class DelayTaskScheduler {
+    private static final String TAG = "DelayTaskScheduler";
+
+    private static volatile ScheduledThreadPoolExecutor timer;
+
+    private static final ThreadFactory TIMER_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    AThreadPoolExecutor.markDispatcherThread();
+                    r.run();
+                }
+            }, TAG);
+        }
+    };
+
+    static void schedule(Object tag, Runnable runnable, long delay, TimeUnit timeUnit, int threadType) {
+        DelayedRunnable delayed = new DelayedRunnable(runnable, threadType);
+        TaskScope.registerDelayed(tag, delayed);
+        ScheduledFuture<?> future = getTimer().schedule(delayed, delay, timeUnit);
+        delayed.future = future;
+        if (delayed.done.get()) {
+            //赋值前已经被取消，cancel时拿不到future
+            removeFromTimer(future);
+        }
+    }
+
+    private static void removeFromTimer(ScheduledFuture<?> future) {
+        future.cancel(false);
+        timer.remove((Runnable) future);
+    }
+
+    static void cancel(Object tag, Runnable runnable) {
+        TaskScope scope = TaskScope.get(tag);
+        if (scope == null) {
+            return;
+        }
+        DelayedRunnable delayed = scope.getDelayed(runnable);
+        if (delayed != null) {
+            delayed.cancel();
+        }
+    }
+
+    static void cancelAll(Object tag) {
+        TaskScope scope = TaskScope.get(tag);
+        if (scope != null) {
+            scope.cancelDelayed();
+        }
+    }
+
+    static ScheduledThreadPoolExecutor getTimer() {
+        if (timer == null) {
+            synchronized (DelayTaskScheduler.class) {
+                if (timer == null) {
+                    timer = new ScheduledThreadPoolExecutor(1, TIMER_THREAD_FACTORY);
+                }
+            }
+        }
+        return timer;
+    }
+
+    static class DelayedRunnable implements Runnable {
+        final Runnable runnable;
+        private final int threadType;
+        TaskScope scope;
+        private volatile ScheduledFuture<?> future;
+        /** 到点执行和取消只有一个能成功，保证范围只释放一次 */
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        DelayedRunnable(Runnable runnable, int threadType) {
+            this.runnable = runnable;
+            this.threadType = threadType;
+        }
+
+        void cancel() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                removeFromTimer(f);
+            }
+            detach();
+        }
+
+        private void detach() {
+            scope.delayed().remove(runnable, this);
+            scope.release();
+        }
+
+        @Override
+        public void run() {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            detach();
+            try {
+                ThreadUtils.execute(threadType, runnable);
+            } catch (Exception e) {
+                Log.e(TAG, "dispatch delay task failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.p0sitive.autils.task;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 按帧批量回调任务结果：后台线程只把结果放进无锁队列，每一帧vsync时在主线程统一回调。<p/>
+ * 同一帧内完成的多个任务只唤醒主线程一次；每帧回调有时间预算，超出预算的结果留到下一帧，避免一帧内回调过多造成掉帧。
+ */
+class FrameBatchDispatcher {
+    /** 每帧用于回调结果的时间上限，约为一帧的四分之一 */
+    private static final long FRAME_BUDGET_NANOS = 4 * 1000 * 1000;
+
+    private static final ConcurrentLinkedQueue<ATaskExecutor.Task.AsyncResult<?, ?>> pending = new ConcurrentLinkedQueue<>();
+    /** 是否已经预约了下一帧 */
+    private static final AtomicBoolean frameScheduled = new AtomicBoolean();
+
+    private static volatile Choreographer choreographer;
+    private static Handler mainHandler;
+
+    private static final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            drain();
+        }
+    };
+
+    /** Choreographer只能在主线程获取，第一次预约时借主线程取一次 */
+    private static final Runnable scheduleOnMain = new Runnable() {
+        @Override
+        public void run() {
+            if (choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(frameCallback);
+        }
+    };
+
+    static void enqueue(ATaskExecutor.Task.AsyncResult<?, ?> result) {
+        pending.offer(result);
+        if (frameScheduled.compareAndSet(false, true)) {
+            scheduleFrame();
+        }
+    }
+
+    private static void scheduleFrame() {
+        Choreographer c = choreographer;
+        if (c != null) {
+            c.postFrameCallback(frameCallback);
+        } else {
+            getMainHandler().post(scheduleOnMain);
+        }
+    }
+
+    private static void drain() {
+        long deadline = System.nanoTime() + FRAME_BUDGET_NANOS;
+        ATaskExecutor.Task.AsyncResult<?, ?> result;
+        while ((result = pending.poll()) != null) {
+            ATaskExecutor.Task.dispatchResult(result);
+            if (System.nanoTime() >= deadline) {
+                break;
+            }
+        }
+
+        if (!pending.isEmpty()) {
+            //超出预算，剩下的下一帧继续
+            scheduleFrame();
+            return;
+        }
+        frameScheduled.set(false);
+        //清标记前刚好有结果入队时，入队方看到的标记还是true，由这里补一次预约
+        if (!pending.isEmpty() && frameScheduled.compareAndSet(false, true)) {
+            scheduleFrame();
+        }
+    }
+
+    private static Handler getMainHandler() {
+        if (mainHandler == null) {
+            synchronized (FrameBatchDispatcher.class) {
+                if (mainHandler == null) {
+                    mainHandler = new Handler(Looper.getMainLooper());
+                }
+            }
+        }
+        return mainHandler;
+    }
+}
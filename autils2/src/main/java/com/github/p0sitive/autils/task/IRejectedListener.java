@@ -0,0 +1,14 @@
+package com.github.p0sitive.autils.task;
+
+/**
+ * 线程池拒绝任务时的回调，回调在提交任务的线程上执行
+ */
+public interface IRejectedListener {
+
+    /**
+     * @param type     线程池类型，{@link ThreadUtils#TYPE_INNER}等
+     * @param runnable 被拒绝（或因{@link ThreadUtils#OVERFLOW_POLICY_DISCARD_OLDEST}被挤掉）的任务
+     */
+    void onTaskRejected(int type, Runnable runnable);
+
+}
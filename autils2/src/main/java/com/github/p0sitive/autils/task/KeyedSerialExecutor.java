@@ -0,0 +1,144 @@
+package com.github.p0sitive.autils.task;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 按key串行执行：同一个key的任务严格按提交顺序执行，不同key之间并行。<p/>
+ * 不为key单独开线程，每个key只是一个排队的Runnable，轮到它时借用{@link ThreadUtils}的线程池执行；
+ * key下的任务执行完后队列立即回收。锁按key的hash分段，不同key之间基本不会互相竞争。
+ */
+class KeyedSerialExecutor {
+    private static final String TAG = "KeyedSerialExecutor";
+
+    private static final int STRIPE_COUNT = 32;
+    /** 连续执行这么多个任务后让出线程，避免一个繁忙的key长期占着线程 */
+    private static final int MAX_RUNS_PER_TURN = 8;
+
+    private static final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+    static {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private static class Stripe {
+        final HashMap<Object, SerialQueue> queues = new HashMap<>();
+    }
+
+    /**
+     * @param threadType key第一次提交时使用的线程池类型，key的队列回收前后续提交沿用这个线程池
+     */
+    static void execute(int threadType, Object key, Runnable runnable) {
+        Stripe stripe = stripeFor(key);
+        SerialQueue toSchedule = null;
+        synchronized (stripe) {
+            SerialQueue queue = stripe.queues.get(key);
+            if (queue == null) {
+                queue = new SerialQueue(stripe, key, threadType);
+                stripe.queues.put(key, queue);
+            }
+            queue.pending.add(runnable);
+            if (!queue.scheduled) {
+                queue.scheduled = true;
+                toSchedule = queue;
+            }
+        }
+        if (toSchedule != null) {
+            ThreadUtils.execute(toSchedule.threadType, toSchedule);
+        }
+    }
+
+    /**
+     * 移除还在排队的任务
+     *
+     * @return 任务还没开始执行并且被移除时返回true
+     */
+    static boolean remove(Object key, Runnable runnable) {
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            SerialQueue queue = stripe.queues.get(key);
+            return queue != null && queue.pending.remove(runnable);
+        }
+    }
+
+    private static Stripe stripeFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPE_COUNT - 1)];
+    }
+
+    static class SerialQueue implements Runnable {
+        private final Stripe stripe;
+        private final Object key;
+        private final int threadType;
+        private final ArrayDeque<Runnable> pending = new ArrayDeque<>();
+        /** 是否已经提交到线程池或正在执行，受stripe锁保护 */
+        private boolean scheduled;
+
+        SerialQueue(Stripe stripe, Object key, int threadType) {
+            this.stripe = stripe;
+            this.key = key;
+            this.threadType = threadType;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < MAX_RUNS_PER_TURN; i++) {
+                Runnable next = poll();
+                if (next == null) {
+                    return;
+                }
+                try {
+                    next.run();
+                } catch (Throwable e) {
+                    Log.e(TAG, "serial task failed, key=" + key, e);
+                }
+            }
+            synchronized (stripe) {
+                if (pending.isEmpty()) {
+                    scheduled = false;
+                    stripe.queues.remove(key);
+                    return;
+                }
+            }
+            ThreadUtils.execute(threadType, this);
+        }
+
+        private Runnable poll() {
+            synchronized (stripe) {
+                Runnable next = pending.poll();
+                if (next == null) {
+                    scheduled = false;
+                    stripe.queues.remove(key);
+                }
+                return next;
+            }
+        }
+
+        /**
+         * 线程池拒绝了这个key的执行机会，排队的任务都视为被拒绝
+         */
+        List<Runnable> drainOnRejected() {
+            synchronized (stripe) {
+                List<Runnable> rejected = new ArrayList<>(pending);
+                pending.clear();
+                scheduled = false;
+                if (stripe.queues.get(key) == this) {
+                    stripe.queues.remove(key);
+                }
+                return rejected;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "SerialQueue[" + key + "]";
+        }
+    }
+}
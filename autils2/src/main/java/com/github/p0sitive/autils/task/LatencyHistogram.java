@@ -0,0 +1,53 @@
+package com.github.p0sitive.autils.task;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定内存的耗时直方图，按微秒取log2分桶，记录只有一次原子加，总数在取快照时由各桶相加。<p/>
+ * 分位数返回所在桶的上界，误差在2倍以内，够看趋势用。
+ */
+class LatencyHistogram {
+    private static final int BUCKET_COUNT = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKET_COUNT) {
+            bucket = BUCKET_COUNT - 1;
+        }
+        buckets.incrementAndGet(bucket);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+    }
+
+    PoolMetrics.Percentiles snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = buckets.get(i);
+            total += copy[i];
+        }
+        return new PoolMetrics.Percentiles(total, percentile(copy, total, 0.50), percentile(copy, total, 0.95), percentile(copy, total, 0.99));
+    }
+
+    private static long percentile(long[] buckets, long total, double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return i == 0 ? 1 : 1L << i;
+            }
+        }
+        return 1L << (buckets.length - 1);
+    }
+}
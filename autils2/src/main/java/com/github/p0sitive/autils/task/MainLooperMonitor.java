@@ -0,0 +1,284 @@
+package com.github.p0sitive.autils.task;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Printer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 主线程卡顿监控：通过{@link Looper#setMessageLogging(Printer)}给每个主线程消息计时，超过预算的记入固定大小的环形缓冲区。<p/>
+ * 卡顿归因到本库的回调：{@link AMainThreadExecutor}的tag或key、经TaskHandler回调的{@link ATaskExecutor.Task}类名、
+ * {@link com.github.p0sitive.autils.toast.Toaster}。一个消息里执行了多个回调时（如按帧批量回调）取耗时最长的一个。<p/>
+ * 后台看门狗线程每半个预算检查一次，消息执行超过预算时采样一次主线程堆栈，所以刚超过预算的卡顿可能没有堆栈。<p/>
+ * 注意Looper只有一个Printer，开启后会替换掉其他通过setMessageLogging设置的Printer。
+ */
+public class MainLooperMonitor {
+    private static final String TAG = "MainLooperMonitor";
+
+    public static final int ORIGIN_UNKNOWN = 0;
+    /** origin为post时的tag，或debounce、throttle、coalesce的key */
+    public static final int ORIGIN_MAIN_THREAD_EXECUTOR = 1;
+    /** origin为任务类名 */
+    public static final int ORIGIN_TASK = 2;
+    /** origin为Toast的文字 */
+    public static final int ORIGIN_TOASTER = 3;
+
+    private static final long DEFAULT_BUDGET_MILLIS = 16;
+    private static final int RING_SIZE = 32;
+
+    private static final JankRecord[] ring = new JankRecord[RING_SIZE];
+    /** 下一个写入位置，和ring一起受ring的锁保护 */
+    private static int ringNext;
+    private static int ringCount;
+
+    private static volatile boolean running;
+    private static volatile long budgetNanos;
+    private static volatile Thread mainThread;
+    private static volatile OnJankListener listener;
+    private static Thread watchdog;
+
+    /** 当前消息开始的时间，0表示主线程没有在执行消息 */
+    private static volatile long dispatchStartNanos;
+    /** 每个消息加一，看门狗用来判断采样的堆栈属于哪个消息 */
+    private static volatile long dispatchSeq;
+    private static volatile long sampledSeq;
+    private static volatile StackTraceElement[] sampledStack;
+
+    //以下只在主线程读写
+    private static int originType;
+    private static Object origin;
+    private static long originNanos;
+
+    public interface OnJankListener {
+        /**
+         * 在主线程、卡顿的消息执行完之后回调
+         */
+        void onJank(JankRecord record);
+    }
+
+    public static class JankRecord {
+        /** 消息结束时的{@link SystemClock#uptimeMillis()} */
+        public final long uptimeMillis;
+        public final long durationMillis;
+        /** Looper打印的消息描述，包含Handler和callback */
+        public final String message;
+        /** {@link #ORIGIN_UNKNOWN}等 */
+        public final int originType;
+        public final String origin;
+        /** 卡顿期间采样的主线程堆栈，可能为null */
+        public final StackTraceElement[] stack;
+
+        JankRecord(long uptimeMillis, long durationMillis, String message, int originType, String origin,
+                   StackTraceElement[] stack) {
+            this.uptimeMillis = uptimeMillis;
+            this.durationMillis = durationMillis;
+            this.message = message;
+            this.originType = originType;
+            this.origin = origin;
+            this.stack = stack;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Jank ").append(durationMillis).append("ms origin[").append(originType).append("]=").append(origin)
+                    .append(" ").append(message);
+            if (stack != null) {
+                for (StackTraceElement element : stack) {
+                    sb.append("\n\tat ").append(element);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final Printer printer = new Printer() {
+        @Override
+        public void println(String x) {
+            if (x == null || x.length() == 0) {
+                return;
+            }
+            char c = x.charAt(0);
+            if (c == '>') {
+                onDispatchStart();
+            } else if (c == '<') {
+                onDispatchEnd(x);
+            }
+        }
+    };
+
+    public static void start() {
+        start(DEFAULT_BUDGET_MILLIS);
+    }
+
+    /**
+     * 开始监控，重复调用只更新预算
+     *
+     * @param budgetMillis 单个消息超过这个时间记为卡顿
+     */
+    public static synchronized void start(long budgetMillis) {
+        if (budgetMillis <= 0) {
+            throw new IllegalArgumentException("budgetMillis <= 0");
+        }
+        budgetNanos = budgetMillis * 1000 * 1000;
+        if (running) {
+            return;
+        }
+        Looper mainLooper = Looper.getMainLooper();
+        mainThread = mainLooper.getThread();
+        running = true;
+        watchdog = new Thread(watchdogLoop, "main-looper-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+        mainLooper.setMessageLogging(printer);
+    }
+
+    public static synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        Looper.getMainLooper().setMessageLogging(null);
+        watchdog.interrupt();
+        watchdog = null;
+        dispatchStartNanos = 0;
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    public static void setOnJankListener(OnJankListener l) {
+        listener = l;
+    }
+
+    /**
+     * 缓冲区中的卡顿记录，从旧到新
+     */
+    public static List<JankRecord> getRecords() {
+        synchronized (ring) {
+            List<JankRecord> records = new ArrayList<>(ringCount);
+            int first = (ringNext - ringCount + RING_SIZE) % RING_SIZE;
+            for (int i = 0; i < ringCount; i++) {
+                records.add(ring[(first + i) % RING_SIZE]);
+            }
+            return records;
+        }
+    }
+
+    public static void clear() {
+        synchronized (ring) {
+            Arrays.fill(ring, null);
+            ringNext = 0;
+            ringCount = 0;
+        }
+    }
+
+    /**
+     * 回调开始前调用，和{@link #exit(int, Object, long)}成对使用。未开启或不在主线程时返回0，exit直接返回
+     */
+    public static long enter() {
+        if (!running || Thread.currentThread() != mainThread) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * 回调结束后调用，origin在消息超过预算时才转成字符串
+     *
+     * @param start {@link #enter()}的返回值
+     */
+    public static void exit(int type, Object origin, long start) {
+        if (start == 0) {
+            return;
+        }
+        long cost = System.nanoTime() - start;
+        if (cost > originNanos) {
+            originNanos = cost;
+            originType = type;
+            MainLooperMonitor.origin = origin;
+        }
+    }
+
+    private static void onDispatchStart() {
+        originType = ORIGIN_UNKNOWN;
+        origin = null;
+        originNanos = 0;
+        dispatchStartNanos = System.nanoTime();
+        dispatchSeq++;
+    }
+
+    private static void onDispatchEnd(String message) {
+        long start = dispatchStartNanos;
+        dispatchStartNanos = 0;
+        if (start == 0) {
+            //开启监控时正在执行的消息
+            return;
+        }
+        long cost = System.nanoTime() - start;
+        Object o = origin;
+        origin = null;
+        if (cost < budgetNanos) {
+            return;
+        }
+
+        StackTraceElement[] stack = sampledSeq == dispatchSeq ? sampledStack : null;
+        JankRecord record = new JankRecord(SystemClock.uptimeMillis(), cost / 1000000, message, originType,
+                originName(originType, o), stack);
+        synchronized (ring) {
+            ring[ringNext] = record;
+            ringNext = (ringNext + 1) % RING_SIZE;
+            if (ringCount < RING_SIZE) {
+                ringCount++;
+            }
+        }
+
+        OnJankListener l = listener;
+        if (l != null) {
+            try {
+                l.onJank(record);
+            } catch (Exception e) {
+                Log.e(TAG, "onJank failed", e);
+            }
+        }
+    }
+
+    private static String originName(int type, Object o) {
+        if (o == null) {
+            return null;
+        }
+        if (type == ORIGIN_TASK) {
+            return o instanceof Class ? ((Class<?>) o).getName() : o.getClass().getName();
+        }
+        return String.valueOf(o);
+    }
+
+    private static final Runnable watchdogLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Thread.sleep(Math.max(1, budgetNanos / 2 / 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long seq = dispatchSeq;
+                long start = dispatchStartNanos;
+                if (start == 0 || seq != dispatchSeq || sampledSeq == seq
+                        || System.nanoTime() - start < budgetNanos) {
+                    continue;
+                }
+                Thread main = mainThread;
+                if (main != null) {
+                    sampledStack = main.getStackTrace();
+                    sampledSeq = seq;
+                }
+            }
+        }
+    };
+}
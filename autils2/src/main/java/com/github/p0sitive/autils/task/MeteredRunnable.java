@@ -0,0 +1,85 @@
+package com.github.p0sitive.autils.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 提交到{@link AThreadPoolExecutor}的任务都会包一层，用来记录排队和执行耗时，并在执行期间把工作线程调整到任务的优先级。<p/>
+ * 在优先级队列中按优先级排序，同优先级按提交顺序。<p/>
+ * {@link ATaskExecutor.Task}自带一个包装，每次提交前用{@link #prepare(PoolMetrics, int)}重置后复用，任务路径上不分配；
+ * 任务同一时间只在一个队列中，重置时包装一定不在队列里，所以不会破坏队列的排序，也不会被别的任务占用。
+ * 其他Runnable每次提交新建一个，不做池化：池化需要抢全局锁，而且移出队列时还要防止包装已被复用给别的任务
+ */
+class MeteredRunnable implements Runnable, Comparable<MeteredRunnable> {
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    final Runnable runnable;
+    /** 以下字段在入队前写入，由队列的锁保证工作线程可见 */
+    private PoolMetrics metrics;
+    private long enqueueTime;
+    /** 执行期间工作线程的系统优先级 */
+    int threadPriority;
+    private long sequence;
+
+    MeteredRunnable(Runnable runnable) {
+        this.runnable = runnable;
+    }
+
+    /**
+     * 每次提交前调用，只能在包装不在任何队列中时调用
+     */
+    MeteredRunnable prepare(PoolMetrics metrics, int threadPriority) {
+        this.metrics = metrics;
+        this.threadPriority = threadPriority;
+        this.sequence = sSequence.getAndIncrement();
+        this.enqueueTime = System.nanoTime();
+        return this;
+    }
+
+    static Runnable unwrap(Runnable r) {
+        return r instanceof MeteredRunnable ? ((MeteredRunnable) r).runnable : r;
+    }
+
+    @Override
+    public void run() {
+        //任务执行中可能让出并被重新提交，包装随即被重置，所以先把本次提交的字段读出来
+        PoolMetrics metrics = this.metrics;
+        long enqueueTime = this.enqueueTime;
+        int threadPriority = this.threadPriority;
+        //只调整本线程池空闲的工作线程。调用方线程直接执行时(caller-runs)，调用方可能是其他线程池的工作线程，
+        //也可能是本池正在执行任务的线程，都不改它的优先级，否则执行完会恢复成默认优先级而不是调用方任务的优先级
+        Thread thread = Thread.currentThread();
+        AThread worker = null;
+        if (thread instanceof AThread) {
+            AThread t = (AThread) thread;
+            if (t.type == metrics.type && !t.running) {
+                worker = t;
+                worker.running = true;
+                worker.applyPriority(threadPriority);
+            }
+        }
+        long startTime = System.nanoTime();
+        metrics.onStarted(startTime - enqueueTime);
+        try {
+            runnable.run();
+        } finally {
+            metrics.onFinished(System.nanoTime() - startTime);
+            if (worker != null) {
+                worker.running = false;
+                worker.resetPriority();
+            }
+        }
+    }
+
+    @Override
+    public int compareTo(MeteredRunnable another) {
+        if (threadPriority != another.threadPriority) {
+            return threadPriority < another.threadPriority ? -1 : 1;
+        }
+        return sequence < another.sequence ? -1 : (sequence == another.sequence ? 0 : 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(runnable);
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.p0sitive.autils.task;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 数据并行任务：把输入切成多块，在{@link ThreadUtils#TYPE_COMPUTE}线程池中并行处理，按块的顺序归并后回调一次onTaskSuccess。<p/>
+ * 块不预先分配给线程，每个线程处理完一块再去领下一块，耗时不均匀时快的线程会多处理几块。
+ * 执行任务的线程自己也领块处理，还没开始的辅助线程直接作废，所以计算线程池被占满时也不会互相等待。<p/>
+ * 任务取消后各线程不再领新的块，正在处理的块结束后立即返回。一般通过{@link ATaskExecutor#executeComputeTask}执行
+ */
+public abstract class ParallelTask<Input, Partial, Result> extends ATaskExecutor.Task<Void, Void, Result> {
+
+    /** 每个线程平均分到的块数，块越多负载越均衡，但切分和归并的开销也越大 */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final List<Input> inputs;
+
+    public ParallelTask(List<Input> inputs) {
+        if (inputs == null) {
+            throw new IllegalArgumentException("inputs is null");
+        }
+        this.inputs = inputs;
+    }
+
+    /**
+     * 每块的输入个数，默认让每个计算线程平均分到{@link #CHUNKS_PER_THREAD}块
+     */
+    protected int getChunkSize() {
+        int chunks = ThreadUtils.COMPUTE_THREAD_SIZE * CHUNKS_PER_THREAD;
+        return Math.max(1, (inputs.size() + chunks - 1) / chunks);
+    }
+
+    /**
+     * 同时处理的线程数，包括执行任务的线程本身，默认等于计算线程数，超过计算线程数也不会更快
+     */
+    protected int getParallelism() {
+        return ThreadUtils.COMPUTE_THREAD_SIZE;
+    }
+
+    /**
+     * 在计算线程中处理一块输入，可能被多个线程同时调用
+     */
+    protected abstract Partial processChunk(List<Input> chunk) throws Exception;
+
+    /**
+     * 在执行任务的线程中归并所有块的结果，partials按块的顺序排列
+     */
+    protected abstract Result reduce(List<Partial> partials) throws Exception;
+
+    @Override
+    protected final Result executeTask(Void... params) throws Exception {
+        int size = inputs.size();
+        int chunkSize = Math.max(1, getChunkSize());
+        int chunkCount = (size + chunkSize - 1) / chunkSize;
+        if (chunkCount == 0) {
+            return reduce(new ArrayList<Partial>(0));
+        }
+
+        Run run = new Run(chunkSize, chunkCount);
+        int helperCount = Math.min(chunkCount, Math.max(1, getParallelism())) - 1;
+        List<Helper> helpers = new ArrayList<>(helperCount);
+        for (int i = 0; i < helperCount; i++) {
+            Helper helper = new Helper(run);
+            helpers.add(helper);
+            ThreadUtils.execute(ThreadUtils.TYPE_COMPUTE, qos, helper);
+        }
+
+        run.work();
+        for (Helper helper : helpers) {
+            helper.join();
+        }
+
+        Throwable error = run.error;
+        if (error instanceof Exception) {
+            throw (Exception) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
+        }
+        if (error != null) {
+            throw new Exception(error);
+        }
+        if (isCancelled()) {
+            throw new CancellationException("parallel task canceled");
+        }
+        return reduce(Arrays.asList(run.partials));
+    }
+
+    /**
+     * 一次执行的共享状态
+     */
+    private class Run {
+        final int chunkSize;
+        final int chunkCount;
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final Partial[] partials;
+        /** 第一个失败的块，包括Error，之后其他线程不再领新块 */
+        volatile Throwable error;
+
+        @SuppressWarnings("unchecked")
+        Run(int chunkSize, int chunkCount) {
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.partials = (Partial[]) new Object[chunkCount];
+        }
+
+        void work() {
+            while (error == null && !isCancelled()) {
+                int index = nextChunk.getAndIncrement();
+                if (index >= chunkCount) {
+                    return;
+                }
+                int from = index * chunkSize;
+                int to = Math.min(from + chunkSize, inputs.size());
+                try {
+                    partials[index] = processChunk(inputs.subList(from, to));
+                } catch (Throwable e) {
+                    //Error也要记下来，否则这一块的结果为null而任务照常成功，辅助线程也会因此退出
+                    if (error == null) {
+                        error = e;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 在计算线程池中领块的辅助线程，和执行任务的线程谁先拿到谁决定它是否执行
+     */
+    private class Helper implements Runnable {
+        private final Run run;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Helper(Run run) {
+            this.run = run;
+        }
+
+        @Override
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                run.work();
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * 还没开始的直接作废，已经开始的等它处理完手上的块
+         */
+        void join() throws InterruptedException {
+            if (claimed.compareAndSet(false, true)) {
+                return;
+            }
+            done.await();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.github.p0sitive.autils.task;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个线程池的运行统计，一直开启，记录只有原子加，不打日志。<p/>
+ * 通过{@link ThreadUtils#getMetrics(int)}获取，调用{@link #snapshot()}读取后可以随性能数据一起上报。
+ */
+public class PoolMetrics {
+
+    final int type;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    final AtomicLong rejectedCount = new AtomicLong();
+    final AtomicLong discardedCount = new AtomicLong();
+    final AtomicLong callerRunsCount = new AtomicLong();
+    final AtomicLong overflowedCount = new AtomicLong();
+
+    private final AtomicLong yieldCount = new AtomicLong();
+    private final AtomicLong yieldSavedNanos = new AtomicLong();
+
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicInteger peakActiveCount = new AtomicInteger();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram runTime = new LatencyHistogram();
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+    PoolMetrics(int type) {
+        this.type = type;
+    }
+
+    void onSubmitted() {
+        submittedCount.incrementAndGet();
+    }
+
+    void onStarted(long waitNanos) {
+        queueWait.record(waitNanos);
+        int active = activeCount.incrementAndGet();
+        int peak;
+        while (active > (peak = peakActiveCount.get())) {
+            if (peakActiveCount.compareAndSet(peak, active)) {
+                break;
+            }
+        }
+    }
+
+    void onFinished(long runNanos) {
+        activeCount.decrementAndGet();
+        runTime.record(runNanos);
+        completedCount.incrementAndGet();
+    }
+
+    void onCancelled() {
+        cancelledCount.incrementAndGet();
+    }
+
+    void onYielded() {
+        yieldCount.incrementAndGet();
+    }
+
+    /**
+     * 让出过线程的任务执行完时调用
+     *
+     * @param nanos 每次让出之后任务剩余的执行时间之和，即不让出时排在后面的任务要多等的时间
+     */
+    void onYieldSaved(long nanos) {
+        yieldSavedNanos.addAndGet(nanos);
+    }
+
+    /**
+     * {@link ATaskExecutor.Task}从后台执行完到主线程收到结果的耗时
+     */
+    void onDelivered(long nanos) {
+        deliveryLatency.record(nanos);
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * 清空计数，正在执行的任务数不清
+     */
+    public void reset() {
+        submittedCount.set(0);
+        completedCount.set(0);
+        cancelledCount.set(0);
+        rejectedCount.set(0);
+        discardedCount.set(0);
+        callerRunsCount.set(0);
+        overflowedCount.set(0);
+        yieldCount.set(0);
+        yieldSavedNanos.set(0);
+        peakActiveCount.set(activeCount.get());
+        queueWait.reset();
+        runTime.reset();
+        deliveryLatency.reset();
+    }
+
+    public static class Percentiles {
+        public final long count;
+        public final long p50Micros;
+        public final long p95Micros;
+        public final long p99Micros;
+
+        Percentiles(long count, long p50Micros, long p95Micros, long p99Micros) {
+            this.count = count;
+            this.p50Micros = p50Micros;
+            this.p95Micros = p95Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", p50=" + p50Micros + "us, p95=" + p95Micros + "us, p99=" + p99Micros + "us}";
+        }
+    }
+
+    public static class Snapshot {
+        /** {@link ThreadUtils#TYPE_INNER}等 */
+        public final int type;
+        public final long submitted;
+        public final long completed;
+        public final long rejected;
+        public final long discarded;
+        public final long callerRuns;
+        public final long overflowed;
+        public final long cancelled;
+        /** 任务在{@link ATaskExecutor.Task#checkpoint()}让出线程的次数 */
+        public final long yielded;
+        /** 估算：因为让出，等待中的高优先级任务少等的时间之和 */
+        public final long yieldSavedMicros;
+        public final int active;
+        public final int peakActive;
+        /** 从提交到开始执行，包括在溢出队列里的时间 */
+        public final Percentiles queueWait;
+        public final Percentiles runTime;
+        /** 只统计{@link ATaskExecutor.Task} */
+        public final Percentiles deliveryLatency;
+
+        Snapshot(PoolMetrics metrics) {
+            type = metrics.type;
+            submitted = metrics.submittedCount.get();
+            completed = metrics.completedCount.get();
+            rejected = metrics.rejectedCount.get();
+            discarded = metrics.discardedCount.get();
+            callerRuns = metrics.callerRunsCount.get();
+            overflowed = metrics.overflowedCount.get();
+            cancelled = metrics.cancelledCount.get();
+            yielded = metrics.yieldCount.get();
+            yieldSavedMicros = metrics.yieldSavedNanos.get() / 1000;
+            active = metrics.activeCount.get();
+            peakActive = metrics.peakActiveCount.get();
+            queueWait = metrics.queueWait.snapshot();
+            runTime = metrics.runTime.snapshot();
+            deliveryLatency = metrics.deliveryLatency.snapshot();
+        }
+
+        @Override
+        public String toString() {
+            return "PoolMetrics[" + type + "] submitted=" + submitted + " completed=" + completed
+                    + " rejected=" + rejected + " discarded=" + discarded + " callerRuns=" + callerRuns
+                    + " overflowed=" + overflowed + " cancelled=" + cancelled
+                    + " yielded=" + yielded + " yieldSaved=" + yieldSavedMicros + "us"
+                    + " active=" + active + " peakActive=" + peakActive
+                    + " queueWait=" + queueWait + " runTime=" + runTime + " delivery=" + deliveryLatency;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.p0sitive.autils.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+
+/**
+ * 多个后台步骤的组合。中间步骤都在后台线程内直接衔接，只有最终结果回到主线程（或指定的Executor）。<p/>
+ * <pre>
+ * TaskFlow.from(loadUser)
+ *         .zip(TaskFlow.from(loadConfig), merge)
+ *         .map(render)
+ *         .execute(activity, callback);
+ * </pre>
+ * 并行的分支（zip、fanOut、fanIn）提交到同一个线程池，当前线程也会参与执行还没开始的分支，线程池满时不会互相等待。
+ * 整个组合作为一个{@link ATaskExecutor.Task}执行，按tag取消时所有分支一起停止。
+ */
+public abstract class TaskFlow<T> {
+
+    public interface Function<I, O> {
+        O apply(I input) throws Exception;
+    }
+
+    public interface Combiner<A, B, O> {
+        O combine(A a, B b) throws Exception;
+    }
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        void onError(Exception e);
+    }
+
+    TaskFlow() {
+    }
+
+    /**
+     * 在后台线程计算结果
+     */
+    abstract T evaluate(ATaskExecutor.Task owner) throws Exception;
+
+    public static <T> TaskFlow<T> from(final Callable<T> callable) {
+        if (callable == null) {
+            throw new IllegalArgumentException("callable is null");
+        }
+        return new TaskFlow<T>() {
+            @Override
+            T evaluate(ATaskExecutor.Task owner) throws Exception {
+                checkCancelled(owner);
+                return callable.call();
+            }
+        };
+    }
+
+    public static <T> TaskFlow<T> just(final T value) {
+        return new TaskFlow<T>() {
+            @Override
+            T evaluate(ATaskExecutor.Task owner) {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * 并行执行所有flow，结果按传入顺序排列
+     */
+    public static <T> TaskFlow<List<T>> fanIn(final List<? extends TaskFlow<? extends T>> flows) {
+        if (flows == null) {
+            throw new IllegalArgumentException("flows is null");
+        }
+        final List<TaskFlow<? extends T>> branches = new ArrayList<TaskFlow<? extends T>>(flows);
+        return new TaskFlow<List<T>>() {
+            @Override
+            List<T> evaluate(ATaskExecutor.Task owner) throws Exception {
+                return evaluateAll(owner, branches);
+            }
+        };
+    }
+
+    /**
+     * 在同一个线程内接着处理上一步的结果
+     */
+    public final <O> TaskFlow<O> map(final Function<? super T, ? extends O> function) {
+        if (function == null) {
+            throw new IllegalArgumentException("function is null");
+        }
+        final TaskFlow<T> upstream = this;
+        return new TaskFlow<O>() {
+            @Override
+            O evaluate(ATaskExecutor.Task owner) throws Exception {
+                T input = upstream.evaluate(owner);
+                checkCancelled(owner);
+                return function.apply(input);
+            }
+        };
+    }
+
+    /**
+     * 根据上一步的结果决定下一个flow
+     */
+    public final <O> TaskFlow<O> then(final Function<? super T, ? extends TaskFlow<O>> next) {
+        if (next == null) {
+            throw new IllegalArgumentException("next is null");
+        }
+        final TaskFlow<T> upstream = this;
+        return new TaskFlow<O>() {
+            @Override
+            O evaluate(ATaskExecutor.Task owner) throws Exception {
+                T input = upstream.evaluate(owner);
+                checkCancelled(owner);
+                return next.apply(input).evaluate(owner);
+            }
+        };
+    }
+
+    /**
+     * 和other并行执行，两边都完成后合并
+     */
+    public final <U, O> TaskFlow<O> zip(final TaskFlow<U> other, final Combiner<? super T, ? super U, ? extends O> combiner) {
+        if (other == null || combiner == null) {
+            throw new IllegalArgumentException("other or combiner is null");
+        }
+        final TaskFlow<T> upstream = this;
+        return new TaskFlow<O>() {
+            @Override
+            O evaluate(ATaskExecutor.Task owner) throws Exception {
+                BranchRunner<U> branch = BranchRunner.start(owner, other);
+                T first = upstream.evaluate(owner);
+                U second = branch.join();
+                checkCancelled(owner);
+                return combiner.combine(first, second);
+            }
+        };
+    }
+
+    /**
+     * 把上一步的结果拆成多份并行处理，结果按拆分顺序排列
+     */
+    public final <I, O> TaskFlow<List<O>> fanOut(final Function<? super T, ? extends List<I>> splitter, final Function<? super I, ? extends O> worker) {
+        if (splitter == null || worker == null) {
+            throw new IllegalArgumentException("splitter or worker is null");
+        }
+        final TaskFlow<T> upstream = this;
+        return new TaskFlow<List<O>>() {
+            @Override
+            List<O> evaluate(ATaskExecutor.Task owner) throws Exception {
+                List<I> parts = splitter.apply(upstream.evaluate(owner));
+                if (parts == null || parts.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                List<TaskFlow<O>> branches = new ArrayList<>(parts.size());
+                for (I part : parts) {
+                    branches.add(just(part).<O>map(worker));
+                }
+                return evaluateAll(owner, branches);
+            }
+        };
+    }
+
+    public final ATaskExecutor.Task execute(Object tag, Callback<? super T> callback) {
+        return execute(ATaskExecutor.EXECUTOR_TYPE_USER, tag, null, callback);
+    }
+
+    /**
+     * @param callbackExecutor 最终结果回调的位置，null表示主线程
+     * @return 执行整个组合的任务，可用于取消
+     */
+    public final ATaskExecutor.Task execute(int type, Object tag, Executor callbackExecutor, Callback<? super T> callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback is null");
+        }
+        FlowTask<T> task = new FlowTask<>(this, callback);
+        task.setCallbackExecutor(callbackExecutor);
+        ATaskExecutor.executeTask(type, tag, task);
+        return task;
+    }
+
+    static void checkCancelled(ATaskExecutor.Task owner) {
+        if (owner.isCancelled()) {
+            throw new CancellationException("task flow canceled");
+        }
+    }
+
+    private static <T> List<T> evaluateAll(ATaskExecutor.Task owner, List<? extends TaskFlow<? extends T>> branches) throws Exception {
+        int size = branches.size();
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        //第一个分支在当前线程执行，其余的交给线程池
+        List<BranchRunner<? extends T>> runners = new ArrayList<>(size - 1);
+        for (int i = 1; i < size; i++) {
+            runners.add(BranchRunner.start(owner, branches.get(i)));
+        }
+        List<T> results = new ArrayList<>(size);
+        results.add(branches.get(0).evaluate(owner));
+        for (BranchRunner<? extends T> runner : runners) {
+            results.add(runner.join());
+        }
+        return results;
+    }
+
+    private static class FlowTask<T> extends ATaskExecutor.Task<Void, Void, T> {
+        private final TaskFlow<T> flow;
+        private final Callback<? super T> callback;
+
+        FlowTask(TaskFlow<T> flow, Callback<? super T> callback) {
+            this.flow = flow;
+            this.callback = callback;
+        }
+
+        @Override
+        protected T executeTask(Void... params) throws Exception {
+            return flow.evaluate(this);
+        }
+
+        @Override
+        protected void onTaskSuccess(T result) {
+            callback.onSuccess(result);
+        }
+
+        @Override
+        protected void onTaskError(Exception e) {
+            callback.onError(e);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.github.p0sitive.autils.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按依赖关系执行一组{@link ATaskExecutor.Task}：没有依赖或依赖都已成功的任务立即并行执行，
+ * 某个任务执行完后在后台线程直接提交它的下游，不经过主线程。<p/>
+ * 下游通过{@link ATaskExecutor.Task#getDependencyResult(ATaskExecutor.Task)}读取上游结果；
+ * 上游失败或被取消时，所有下游直接跳过，不会执行也不会回调。<p/>
+ * 依赖只能指向已经add过的任务，所以图中不会出现环。全部结束后可以读取关键路径耗时，用于找出拖慢整体的那条依赖链。
+ * 只有没有依赖的任务在{@link #execute(int, Object)}的调用线程回调onPreTask；下游任务在上游的工作线程直接提交，
+ * 不回调onPreTask，需要在主线程做的准备放到execute之前。
+ */
+public class TaskGraph {
+
+    public interface Listener {
+        /**
+         * 所有任务都结束或被跳过后在主线程回调
+         *
+         * @param success 所有任务都执行成功时为true
+         */
+        void onGraphFinish(TaskGraph graph, boolean success);
+    }
+
+    private static final int STATE_WAITING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_SUCCEEDED = 2;
+    private static final int STATE_FAILED = 3;
+    private static final int STATE_SKIPPED = 4;
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private volatile boolean failed;
+    private Listener listener;
+    private int executorType;
+    private Object tag;
+    private volatile long startTime;
+    private volatile long finishTime;
+
+    static class Node {
+        final TaskGraph graph;
+        final ATaskExecutor.Task task;
+        final List<Node> dependencies;
+        final List<Node> dependents = new ArrayList<>(2);
+        final AtomicInteger pendingDependencies;
+        final AtomicInteger state = new AtomicInteger(STATE_WAITING);
+        volatile Object value;
+        long startNanos;
+        long endNanos;
+
+        Node(TaskGraph graph, ATaskExecutor.Task task, List<Node> dependencies) {
+            this.graph = graph;
+            this.task = task;
+            this.dependencies = dependencies;
+            this.pendingDependencies = new AtomicInteger(dependencies.size());
+        }
+
+        void onStarted() {
+            //checkpoint让出后再次执行时保留第一次的开始时间
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+        }
+
+        /**
+         * 任务在后台执行结束，success为false时包括失败、取消和被拒绝
+         */
+        void onCompleted(Object value, boolean success) {
+            endNanos = System.nanoTime();
+            if (startNanos == 0) {
+                startNanos = endNanos;
+            }
+            this.value = value;
+            if (!state.compareAndSet(STATE_RUNNING, success ? STATE_SUCCEEDED : STATE_FAILED)) {
+                return;
+            }
+            graph.onNodeCompleted(this, success);
+        }
+    }
+
+    /**
+     * @param task 还没有执行过的任务，加入图之后也不能再单独执行
+     * @param dependencies 必须是已经add过的任务
+     */
+    public synchronized TaskGraph add(ATaskExecutor.Task task, ATaskExecutor.Task... dependencies) {
+        if (task == null) {
+            throw new IllegalArgumentException("task is null");
+        }
+        if (started.get()) {
+            throw new IllegalStateException("graph already executed");
+        }
+        if (task.graphNode != null) {
+            throw new IllegalArgumentException("task already added");
+        }
+        if (task.scope != null) {
+            //提交下游时才会发现，那时已经在工作线程上，图永远不会结束
+            throw new IllegalStateException("task already executed");
+        }
+        List<Node> deps = new ArrayList<>(dependencies.length);
+        for (ATaskExecutor.Task dependency : dependencies) {
+            Node dep = dependency == null ? null : dependency.graphNode;
+            if (dep == null || dep.graph != this) {
+                throw new IllegalArgumentException("dependency " + dependency + " must be added before " + task);
+            }
+            if (!deps.contains(dep)) {
+                deps.add(dep);
+            }
+        }
+        Node node = new Node(this, task, deps);
+        for (Node dep : deps) {
+            dep.dependents.add(node);
+        }
+        task.graphNode = node;
+        nodes.add(node);
+        return this;
+    }
+
+    public synchronized TaskGraph setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    public void execute(Object tag) {
+        execute(ATaskExecutor.EXECUTOR_TYPE_USER, tag);
+    }
+
+    /**
+     * 提交所有没有依赖的任务，同一个图只能执行一次。按tag取消时正在执行的任务被中断，其下游全部跳过
+     */
+    public void execute(int type, Object tag) {
+        if (tag == null) {
+            throw new IllegalArgumentException("tag is null");
+        }
+        List<Node> roots = new ArrayList<>();
+        synchronized (this) {
+            for (Node node : nodes) {
+                if (node.task.scope != null) {
+                    throw new IllegalStateException("task " + node.task + " executed outside the graph");
+                }
+            }
+            if (!started.compareAndSet(false, true)) {
+                throw new IllegalStateException("graph already executed");
+            }
+            this.executorType = type;
+            this.tag = tag;
+            this.startTime = System.nanoTime();
+            remaining.set(nodes.size());
+            for (Node node : nodes) {
+                if (node.dependencies.isEmpty()) {
+                    roots.add(node);
+                }
+            }
+        }
+        if (nodes.isEmpty()) {
+            finishGraph();
+            return;
+        }
+        for (Node root : roots) {
+            root.task.onPreTask();
+            submit(root);
+        }
+    }
+
+    private void submit(Node node) {
+        if (!node.state.compareAndSet(STATE_WAITING, STATE_RUNNING)) {
+            return;
+        }
+        ATaskExecutor.executeTask(executorType, tag, node.task);
+    }
+
+    private void onNodeCompleted(Node node, boolean success) {
+        if (success) {
+            for (Node dependent : node.dependents) {
+                if (dependent.pendingDependencies.decrementAndGet() == 0) {
+                    submit(dependent);
+                }
+            }
+        } else {
+            failed = true;
+            for (Node dependent : node.dependents) {
+                skip(dependent);
+            }
+        }
+        if (remaining.decrementAndGet() == 0) {
+            finishGraph();
+        }
+    }
+
+    private void skip(Node node) {
+        if (!node.state.compareAndSet(STATE_WAITING, STATE_SKIPPED)) {
+            return;
+        }
+        for (Node dependent : node.dependents) {
+            skip(dependent);
+        }
+        if (remaining.decrementAndGet() == 0) {
+            finishGraph();
+        }
+    }
+
+    private void finishGraph() {
+        finishTime = System.nanoTime();
+        final Listener l;
+        synchronized (this) {
+            l = listener;
+        }
+        if (l != null) {
+            AMainThreadExecutor.post(new Runnable() {
+                @Override
+                public void run() {
+                    l.onGraphFinish(TaskGraph.this, !failed);
+                }
+            });
+        }
+    }
+
+    public boolean isFinished() {
+        return finishTime != 0;
+    }
+
+    /**
+     * 从开始执行到最后一个任务结束的耗时，单位毫秒
+     */
+    public long getElapsedTime() {
+        if (!isFinished()) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(finishTime - startTime);
+    }
+
+    /**
+     * 关键路径上各任务执行耗时之和，单位毫秒。被跳过的任务不计入
+     */
+    public long getCriticalPathDuration() {
+        List<ATaskExecutor.Task> path = new ArrayList<>();
+        return TimeUnit.NANOSECONDS.toMillis(computeCriticalPath(path));
+    }
+
+    /**
+     * 执行耗时之和最长的依赖链，按执行顺序排列
+     */
+    public List<ATaskExecutor.Task> getCriticalPath() {
+        List<ATaskExecutor.Task> path = new ArrayList<>();
+        computeCriticalPath(path);
+        return path;
+    }
+
+    /**
+     * nodes的添加顺序就是拓扑序，按顺序算出以每个节点结尾的最长路径
+     */
+    private synchronized long computeCriticalPath(List<ATaskExecutor.Task> path) {
+        if (!isFinished()) {
+            return 0;
+        }
+        int size = nodes.size();
+        long[] longest = new long[size];
+        int[] previous = new int[size];
+        int last = -1;
+        for (int i = 0; i < size; i++) {
+            Node node = nodes.get(i);
+            previous[i] = -1;
+            long upstream = 0;
+            for (Node dep : node.dependencies) {
+                int index = nodes.indexOf(dep);
+                if (longest[index] > upstream) {
+                    upstream = longest[index];
+                    previous[i] = index;
+                }
+            }
+            int state = node.state.get();
+            long duration = state == STATE_SUCCEEDED || state == STATE_FAILED ? node.endNanos - node.startNanos : 0;
+            longest[i] = upstream + duration;
+            if (last < 0 || longest[i] > longest[last]) {
+                last = i;
+            }
+        }
+        if (last < 0) {
+            return 0;
+        }
+        for (int i = last; i >= 0; i = previous[i]) {
+            path.add(nodes.get(i).task);
+        }
+        Collections.reverse(path);
+        return longest[last];
+    }
+}
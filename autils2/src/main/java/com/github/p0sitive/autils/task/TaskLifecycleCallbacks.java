@@ -0,0 +1,48 @@
+package com.github.p0sitive.autils.task;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+
+/**
+ * 以Activity作为tag时，跟随Activity生命周期自动管理任务：<p/>
+ * 销毁时取消该Activity及其子范围下的任务、延时任务和主线程Runnable；
+ * 暂停期间新提交的{@link ATaskExecutor#EXECUTOR_TYPE_USER}任务降级到{@link ThreadUtils#TYPE_INNER}线程池，
+ * 暂停时还在user线程池及其溢出队列中排队的任务也移到inner线程池，正在执行的降低线程优先级，恢复时恢复，
+ * 把前台线程池留给正在显示的页面。
+ */
+class TaskLifecycleCallbacks implements Application.ActivityLifecycleCallbacks {
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+        TaskScope.setPaused(activity, false);
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+        TaskScope.setPaused(activity, true);
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        TaskScope.setPaused(activity, false);
+        ATaskExecutor.cancelScope(activity);
+        AMainThreadExecutor.cancelAllRunnables(activity);
+    }
+}
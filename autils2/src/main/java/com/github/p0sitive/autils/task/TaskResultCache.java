@@ -0,0 +1,135 @@
+package com.github.p0sitive.autils.task;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ATaskExecutor.Task}结果缓存，按最近使用淘汰，每条结果有自己的有效期。<p/>
+ * 通过{@link ATaskExecutor#getResultCache()}获取，用于调整容量和读取命中统计。
+ */
+public class TaskResultCache {
+    private static final int DEFAULT_MAX_SIZE = 64;
+
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    private final LinkedHashMap<Object, CachedResult> map = new LinkedHashMap<Object, CachedResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, CachedResult> eldest) {
+            if (size() > maxSize) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong staleHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    TaskResultCache() {
+    }
+
+    static class CachedResult {
+        final Object value;
+        final long expireTime;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CachedResult(Object value, long expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+
+        boolean isStale() {
+            return SystemClock.elapsedRealtime() >= expireTime;
+        }
+    }
+
+    /**
+     * @param allowStale 是否返回已过期的结果
+     * @return 没有可用结果时返回null
+     */
+    CachedResult lookup(Object key, boolean allowStale) {
+        synchronized (map) {
+            CachedResult entry = map.get(key);
+            if (entry == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            if (!entry.isStale()) {
+                hitCount.incrementAndGet();
+                return entry;
+            }
+            if (allowStale) {
+                staleHitCount.incrementAndGet();
+                return entry;
+            }
+            map.remove(key);
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    void put(Object key, Object value, long ttlMillis) {
+        CachedResult entry = new CachedResult(value, SystemClock.elapsedRealtime() + ttlMillis);
+        synchronized (map) {
+            map.put(key, entry);
+        }
+    }
+
+    public void remove(Object key) {
+        synchronized (map) {
+            map.remove(key);
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        synchronized (map) {
+            this.maxSize = maxSize;
+            while (map.size() > maxSize) {
+                Object eldest = map.keySet().iterator().next();
+                map.remove(eldest);
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /** 未过期命中次数 */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /** 过期结果被stale-while-revalidate直接使用的次数 */
+    public long getStaleHitCount() {
+        return staleHitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /** 超过容量被淘汰的条数 */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+}
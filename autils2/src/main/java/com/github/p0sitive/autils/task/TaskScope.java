@@ -0,0 +1,355 @@
+package com.github.p0sitive.autils.task;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 一个tag对应的任务范围，记录该tag下的任务、延时任务和子范围。<p/>
+ * 范围可以组成树：通过{@link ATaskExecutor#bindScope(Object, Object)}把Fragment、列表项等tag挂到Activity下，
+ * 取消父范围时所有子孙范围里执行中、排队中和延时中的任务都会被取消。<p/>
+ * 任务登记和完成都不加锁：登记是一次CAS压栈，完成只做标记和计数，已完成的节点在积累较多或范围空闲时顺手摘掉。<p/>
+ * 只有还有任务、延时任务或子范围的范围会被复用，最后一个结束时立即从注册表移除，不再引用tag。
+ * 一次只跑一个任务的tag每次会新建范围，所以范围本身只有一个对象，子范围表和延时任务表用到时才创建。
+ */
+class TaskScope {
+
+    private static final int RETIRED = -1;
+    private static final int PRUNE_THRESHOLD = 16;
+
+    private static final ConcurrentHashMap<Object, TaskScope> scopes = new ConcurrentHashMap<>();
+
+    /** 子tag到父tag的绑定关系，范围被回收后再次使用时据此重新挂到父范围下 */
+    private static final Map<Object, Object> bindings = Collections.synchronizedMap(new WeakHashMap<Object, Object>());
+
+    /** 处于暂停状态的tag，受自身锁保护 */
+    private static final Set<Object> pausedTags = Collections.newSetFromMap(new WeakHashMap<Object, Boolean>());
+    private static volatile boolean hasPausedTags;
+
+    private static final AtomicReferenceFieldUpdater<TaskScope, ATaskExecutor.Task> HEAD =
+            AtomicReferenceFieldUpdater.newUpdater(TaskScope.class, ATaskExecutor.Task.class, "head");
+    private static final AtomicReferenceFieldUpdater<TaskScope, TaskScope> PARENT =
+            AtomicReferenceFieldUpdater.newUpdater(TaskScope.class, TaskScope.class, "parent");
+    private static final AtomicIntegerFieldUpdater<TaskScope> LIVE_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(TaskScope.class, "liveCount");
+    private static final AtomicIntegerFieldUpdater<TaskScope> NODE_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(TaskScope.class, "nodeCount");
+    private static final AtomicIntegerFieldUpdater<TaskScope> PRUNING =
+            AtomicIntegerFieldUpdater.newUpdater(TaskScope.class, "pruning");
+
+    final Object tag;
+    private volatile TaskScope parent;
+    private volatile ATaskExecutor.Task head;
+    private volatile boolean cancelled;
+
+    /** 任务数+延时任务数+子范围数，{@link #RETIRED}表示已回收 */
+    private volatile int liveCount;
+    /** 链表中的节点数，包括已完成还没摘掉的 */
+    private volatile int nodeCount;
+    /** 1表示有线程在摘节点 */
+    private volatile int pruning;
+
+    /** 子范围和延时任务，大部分tag用不到，第一次使用时再创建 */
+    private volatile ConcurrentMap<TaskScope, Boolean> children;
+    private volatile ConcurrentHashMap<Runnable, DelayTaskScheduler.DelayedRunnable> delayed;
+
+    private TaskScope(Object tag) {
+        this.tag = tag;
+    }
+
+    /**
+     * 登记任务，任务完成时调用{@link #onTaskFinished()}
+     */
+    static void register(Object tag, ATaskExecutor.Task task) {
+        TaskScope scope = acquire(tag);
+        ATaskExecutor.Task first;
+        do {
+            first = scope.head;
+            task.nextInScope = first;
+        } while (!HEAD.compareAndSet(scope, first, task));
+        task.scope = scope;
+        NODE_COUNT.incrementAndGet(scope);
+
+        if (scope.cancelled) {
+            //登记的同时范围被整体取消了
+            task.cancel(true);
+        }
+    }
+
+    static void registerDelayed(Object tag, DelayTaskScheduler.DelayedRunnable delayedRunnable) {
+        TaskScope scope = acquire(tag);
+        delayedRunnable.scope = scope;
+        DelayTaskScheduler.DelayedRunnable previous = scope.delayed().put(delayedRunnable.runnable, delayedRunnable);
+        if (previous != null) {
+            //同一个tag下重复schedule同一个runnable时，以最后一次为准
+            previous.cancel();
+        }
+        if (scope.cancelled) {
+            delayedRunnable.cancel();
+        }
+    }
+
+    static TaskScope get(Object tag) {
+        return scopes.get(tag);
+    }
+
+    ConcurrentHashMap<Runnable, DelayTaskScheduler.DelayedRunnable> delayed() {
+        ConcurrentHashMap<Runnable, DelayTaskScheduler.DelayedRunnable> map = delayed;
+        if (map == null) {
+            synchronized (this) {
+                map = delayed;
+                if (map == null) {
+                    map = new ConcurrentHashMap<>();
+                    delayed = map;
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * 还没有登记过延时任务时返回null
+     */
+    DelayTaskScheduler.DelayedRunnable getDelayed(Runnable runnable) {
+        ConcurrentHashMap<Runnable, DelayTaskScheduler.DelayedRunnable> map = delayed;
+        return map == null ? null : map.get(runnable);
+    }
+
+    private ConcurrentMap<TaskScope, Boolean> children() {
+        ConcurrentMap<TaskScope, Boolean> map = children;
+        if (map == null) {
+            synchronized (this) {
+                map = children;
+                if (map == null) {
+                    map = new ConcurrentHashMap<>();
+                    children = map;
+                }
+            }
+        }
+        return map;
+    }
+
+    static void bind(Object parentTag, Object childTag) {
+        for (Object t = parentTag; t != null; t = bindings.get(t)) {
+            if (t.equals(childTag)) {
+                throw new IllegalArgumentException("scope cycle: " + childTag + " is an ancestor of " + parentTag);
+            }
+        }
+        Object previous = bindings.put(childTag, parentTag);
+        if (previous != null && !previous.equals(parentTag)) {
+            bindings.put(childTag, previous);
+            throw new IllegalStateException(childTag + " already bound to " + previous);
+        }
+
+        //已经存在的子范围立即挂上去，之后新建的子范围在创建时挂上去
+        TaskScope child = scopes.get(childTag);
+        if (child != null && child.acquireSelf()) {
+            child.linkParent();
+            child.release();
+        }
+    }
+
+    static void setPaused(Object tag, boolean paused) {
+        synchronized (pausedTags) {
+            if (paused) {
+                pausedTags.add(tag);
+            } else {
+                pausedTags.remove(tag);
+            }
+            hasPausedTags = !pausedTags.isEmpty();
+        }
+        TaskScope scope = scopes.get(tag);
+        if (scope != null) {
+            scope.setLowered(paused);
+        }
+    }
+
+    /**
+     * 暂停时把本范围及子孙范围中排队的user任务移到inner线程池、执行中的降低线程优先级，恢复时恢复执行中任务的优先级
+     */
+    private void setLowered(boolean lowered) {
+        for (ATaskExecutor.Task task = head; task != null; task = task.nextInScope) {
+            if (task.isFinished) {
+                continue;
+            }
+            if (lowered) {
+                task.demote();
+            } else {
+                task.restorePriority();
+            }
+        }
+        Map<TaskScope, Boolean> c = children;
+        if (c != null) {
+            for (TaskScope child : c.keySet()) {
+                child.setLowered(lowered);
+            }
+        }
+    }
+
+    /**
+     * tag或它的任意一层父范围处于暂停状态时返回true
+     */
+    static boolean isPaused(Object tag) {
+        if (!hasPausedTags) {
+            return false;
+        }
+        for (Object t = tag; t != null; t = bindings.get(t)) {
+            synchronized (pausedTags) {
+                if (pausedTags.contains(t)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 取得tag的范围并占用一个计数，已回收的范围会被替换成新的
+     */
+    private static TaskScope acquire(Object tag) {
+        for (;;) {
+            TaskScope scope = scopes.get(tag);
+            if (scope == null) {
+                TaskScope created = new TaskScope(tag);
+                //先占住，避免挂到父范围前被回收
+                created.liveCount = 1;
+                scope = scopes.putIfAbsent(tag, created);
+                if (scope == null) {
+                    created.linkParent();
+                    return created;
+                }
+            }
+            if (scope.acquireSelf()) {
+                return scope;
+            }
+            scopes.remove(tag, scope);
+        }
+    }
+
+    private boolean acquireSelf() {
+        for (;;) {
+            int count = liveCount;
+            if (count == RETIRED) {
+                return false;
+            }
+            if (LIVE_COUNT.compareAndSet(this, count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void linkParent() {
+        Object parentTag = bindings.get(tag);
+        if (parentTag == null || parent != null) {
+            return;
+        }
+        TaskScope parentScope = acquire(parentTag);
+        if (!PARENT.compareAndSet(this, null, parentScope)) {
+            parentScope.release();
+            return;
+        }
+        parentScope.children().put(this, Boolean.TRUE);
+        if (parentScope.cancelled) {
+            cancel(true);
+        }
+    }
+
+    /**
+     * 计数归零时回收：和再次登记的竞争由CAS决定，失败说明又有新任务占用了这个范围
+     */
+    void release() {
+        if (LIVE_COUNT.decrementAndGet(this) == 0 && LIVE_COUNT.compareAndSet(this, 0, RETIRED)) {
+            retire();
+        }
+    }
+
+    private void retire() {
+        scopes.remove(tag, this);
+        TaskScope p = parent;
+        if (p != null) {
+            p.children.remove(this);
+            p.release();
+        }
+    }
+
+    void onTaskFinished() {
+        int live = liveCount;
+        release();
+        if (live > 1 && nodeCount > 2 * Math.max(live, PRUNE_THRESHOLD)) {
+            prune();
+        }
+    }
+
+    /**
+     * 摘掉已完成的节点。并发的登记只会改head，不会改链表中间的指针，所以只要保证同一时间只有一个线程在摘就是安全的
+     */
+    private void prune() {
+        if (!PRUNING.compareAndSet(this, 0, 1)) {
+            return;
+        }
+        try {
+            ATaskExecutor.Task prev = head;
+            if (prev == null) {
+                return;
+            }
+            int removed = 0;
+            ATaskExecutor.Task current = prev.nextInScope;
+            while (current != null) {
+                ATaskExecutor.Task next = current.nextInScope;
+                if (current.isFinished) {
+                    prev.nextInScope = next;
+                    removed++;
+                } else {
+                    prev = current;
+                }
+                current = next;
+            }
+            NODE_COUNT.addAndGet(this, -removed);
+        } finally {
+            pruning = 0;
+        }
+    }
+
+    /**
+     * 取消本范围及所有子孙范围中的任务
+     *
+     * @param all true时同时取消延时任务，并把范围从注册表移除，之后同tag的新任务进入新的范围
+     */
+    void cancel(boolean all) {
+        if (all) {
+            cancelled = true;
+            scopes.remove(tag, this);
+        }
+        //按Map遍历：ConcurrentHashMap.keySet()在compileSdk 24+会编译成返回KeySetView的签名，API 24以下没有这个方法
+        Map<TaskScope, Boolean> c = children;
+        if (c != null) {
+            for (TaskScope child : c.keySet()) {
+                child.cancel(all);
+            }
+        }
+        for (ATaskExecutor.Task task = head; task != null; task = task.nextInScope) {
+            if (!task.isFinished) {
+                task.cancel(true);
+                task.removeFromSerialQueue();
+            }
+        }
+        if (all) {
+            cancelDelayed();
+        }
+    }
+
+    void cancelDelayed() {
+        ConcurrentHashMap<Runnable, DelayTaskScheduler.DelayedRunnable> d = delayed;
+        if (d == null) {
+            return;
+        }
+        for (DelayTaskScheduler.DelayedRunnable delayedRunnable : d.values()) {
+            delayedRunnable.cancel();
+        }
+    }
+}
@@ -1,11 +1,10 @@
 package com.github.p0sitive.autils.task;
 
-import com.github.p0sitive.autils.AppContext;
-
+import android.os.Process;
 import android.util.Log;
 
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -14,20 +13,31 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 执行一个Thread，不关心Callback，有需要关心Callback的请使用MomoTaskExecutor，关心Callback就一定要cancelCallback<p/>
- * 这里提供了两个线程池，一种是对执行时间要求不高，比如下载一些资源、上传日志等
+ * 这里提供了四个线程池，一种是对执行时间要求不高，比如下载一些资源、上传日志等，按QoS优先级排队
  * 一种是需要立即执行，比如load消息等(建议使用第二种)
+ * 一种是文件、DB等本地操作，单独限制并发数，避免慢的本地IO占满第二种线程池
+ * 一种是图片处理、解析等纯计算，线程数等于CPU核数，不和IO任务抢线程
  * <p/>
  */
 public class ThreadUtils {
     private static final String TAG = "ThreadUtils";
-    private static ThreadPoolExecutor innerPool = null;
+    private static volatile AThreadPoolExecutor innerPool = null;
+
+    private static volatile AThreadPoolExecutor rightNowPool = null;
+
+    private static volatile AThreadPoolExecutor localPool = null;
 
-    private static ThreadPoolExecutor rightNowPool = null;
+    private static volatile AThreadPoolExecutor computePool = null;
 
     private static final int INNER_THREAD_SIZE_MIN = 1;
     private static final int INNER_THREAD_SIZE_MAX = 3;
     private static final int RIGHT_NOW_THREAD_SIZE_MIN = 10;
     private static final int RIGHT_NOW_THREAD_SIZE_MAX = 50;
+    private static final int RIGHT_NOW_OVERFLOW_SIZE = 128;
+    /** 本地存储并发读写超过这个数只会互相抢IO，排队反而更快 */
+    private static final int LOCAL_THREAD_SIZE = 4;
+    /** 计算任务多于CPU核数的线程只会增加切换开销 */
+    static final int COMPUTE_THREAD_SIZE = Math.max(1, Runtime.getRuntime().availableProcessors());
 
 
     /**
@@ -42,38 +52,337 @@ public class ThreadUtils {
      * 立即执行，本地操作：文件、DB查询等
      */
     public static final int TYPE_RIGHT_NOW_LOCAL = 3;
+    /**
+     * CPU密集的计算，见{@link ParallelTask}
+     */
+    public static final int TYPE_COMPUTE = 4;
+
+    /**
+     * 使用线程池的默认QoS：inner为{@link #QOS_BACKGROUND}，其余为{@link #QOS_USER_INITIATED}
+     */
+    public static final int QOS_DEFAULT = 0;
+    /**
+     * 用户正在等待、直接影响当前交互的任务，如首屏数据
+     */
+    public static final int QOS_USER_INTERACTIVE = 1;
+    /**
+     * 用户触发、需要尽快完成的任务
+     */
+    public static final int QOS_USER_INITIATED = 2;
+    /**
+     * 用户能感知但不急的任务，如预加载
+     */
+    public static final int QOS_UTILITY = 3;
+    /**
+     * 用户感知不到的任务，如日志上传、清理缓存
+     */
+    public static final int QOS_BACKGROUND = 4;
 
-    public synchronized static void execute(int type, Runnable runnable) {
+    /**
+     * 溢出队列满后阻塞提交线程，直到有空位
+     */
+    public static final int OVERFLOW_POLICY_BLOCK = 1;
+    /**
+     * 溢出队列满后在提交线程上直接执行
+     */
+    public static final int OVERFLOW_POLICY_CALLER_RUNS = 2;
+    /**
+     * 溢出队列满后直接拒绝，通过{@link IRejectedListener}回调
+     */
+    public static final int OVERFLOW_POLICY_FAIL_FAST = 3;
+    /**
+     * 溢出队列满后挤掉最早进入溢出队列的任务，被挤掉的任务通过{@link IRejectedListener}回调
+     */
+    public static final int OVERFLOW_POLICY_DISCARD_OLDEST = 4;
+
+    private static final PoolMetrics innerMetrics = new PoolMetrics(TYPE_INNER);
+    private static final PoolMetrics rightNowMetrics = new PoolMetrics(TYPE_RIGHT_NOW);
+    private static final PoolMetrics localMetrics = new PoolMetrics(TYPE_RIGHT_NOW_LOCAL);
+    private static final PoolMetrics computeMetrics = new PoolMetrics(TYPE_COMPUTE);
+
+    private static volatile int overflowPolicy = OVERFLOW_POLICY_FAIL_FAST;
+    private static volatile IRejectedListener rejectedListener;
+
+    /**
+     * 设置{@link #TYPE_RIGHT_NOW}线程池溢出队列满后的处理策略，默认{@link #OVERFLOW_POLICY_FAIL_FAST}
+     */
+    public static void setOverflowPolicy(int policy) {
+        if (policy < OVERFLOW_POLICY_BLOCK || policy > OVERFLOW_POLICY_DISCARD_OLDEST) {
+            throw new IllegalArgumentException("unknown overflow policy " + policy);
+        }
+        overflowPolicy = policy;
+        AThreadPoolExecutor pool = rightNowPool;
+        if (pool != null) {
+            pool.setOverflowPolicy(policy);
+        }
+    }
+
+    public static void setRejectedListener(IRejectedListener listener) {
+        rejectedListener = listener;
+        AThreadPoolExecutor pool = innerPool;
+        if (pool != null) {
+            pool.setRejectedListener(listener);
+        }
+        pool = rightNowPool;
+        if (pool != null) {
+            pool.setRejectedListener(listener);
+        }
+        pool = localPool;
+        if (pool != null) {
+            pool.setRejectedListener(listener);
+        }
+        pool = computePool;
+        if (pool != null) {
+            pool.setRejectedListener(listener);
+        }
+    }
+
+    /**
+     * 提交任务，不加锁；线程池只在第一次使用时创建一次
+     */
+    public static void execute(int type, Runnable runnable) {
+        execute(type, QOS_DEFAULT, runnable);
+    }
+
+    /**
+     * 按指定的QoS执行，执行期间工作线程的系统优先级调整为QoS对应的值，执行完恢复，不影响同一线程执行的下一个任务
+     *
+     * @param qos {@link #QOS_USER_INTERACTIVE}等
+     */
+    public static void execute(int type, int qos, Runnable runnable) {
         switch (type) {
             case TYPE_INNER:
-                if (null == innerPool) {
-                    innerPool = new ThreadPoolExecutor(INNER_THREAD_SIZE_MIN, INNER_THREAD_SIZE_MAX, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new AThreadFactory(type), new RejectedHandler());
-                }
-                innerPool.execute(runnable);
-                if (AppContext.DEBUGGABLE) {
-                    Log.i(TAG, "ThreadUtils [innerPool] : PoolSize:" + innerPool.getPoolSize() + " ActiveSize:" + innerPool.getActiveCount());
-                }
+                getInnerPool().execute(runnable, qos);
                 break;
             case TYPE_RIGHT_NOW:
+                getRightNowPool().execute(runnable, qos);
+                break;
             case TYPE_RIGHT_NOW_LOCAL:
-                if (null == rightNowPool) {
-                    rightNowPool = new ThreadPoolExecutor(RIGHT_NOW_THREAD_SIZE_MIN, RIGHT_NOW_THREAD_SIZE_MAX, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new AThreadFactory(type), new RejectedHandler());
+                getLocalPool().execute(runnable, qos);
+                break;
+            case TYPE_COMPUTE:
+                getComputePool().execute(runnable, qos);
+                break;
+            default:
+                break;
+        }
+    }
+
+    static int defaultQos(int type) {
+        return type == TYPE_INNER ? QOS_BACKGROUND : QOS_USER_INITIATED;
+    }
+
+    /**
+     * QoS对应的{@link Process#setThreadPriority(int)}值，数值越小优先级越高
+     */
+    static int toThreadPriority(int qos) {
+        switch (qos) {
+            case QOS_USER_INTERACTIVE:
+                return Process.THREAD_PRIORITY_DISPLAY;
+            case QOS_USER_INITIATED:
+                return Process.THREAD_PRIORITY_DEFAULT;
+            case QOS_UTILITY:
+                return Process.THREAD_PRIORITY_DEFAULT + 5;
+            case QOS_BACKGROUND:
+            default:
+                return Process.THREAD_PRIORITY_BACKGROUND;
+        }
+    }
+
+    /**
+     * 按key串行执行，同一个key的任务按提交顺序逐个执行，不同key之间并行，不会为key单独创建线程
+     *
+     * @param type key当前没有排队任务时，用这个线程池执行该key接下来的任务
+     */
+    public static void executeSerial(int type, Object key, Runnable runnable) {
+        if (key == null) {
+            throw new IllegalArgumentException("key is null");
+        }
+        if (runnable == null) {
+            throw new IllegalArgumentException("runnable is null");
+        }
+        KeyedSerialExecutor.execute(type, key, runnable);
+    }
+
+    private static AThreadPoolExecutor getInnerPool() {
+        AThreadPoolExecutor pool = innerPool;
+        if (pool == null) {
+            synchronized (ThreadUtils.class) {
+                pool = innerPool;
+                if (pool == null) {
+                    pool = new AThreadPoolExecutor(TYPE_INNER, INNER_THREAD_SIZE_MIN, INNER_THREAD_SIZE_MAX, 60L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), 0, innerMetrics);
+                    pool.setRejectedListener(rejectedListener);
+                    innerPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    private static AThreadPoolExecutor getRightNowPool() {
+        AThreadPoolExecutor pool = rightNowPool;
+        if (pool == null) {
+            synchronized (ThreadUtils.class) {
+                pool = rightNowPool;
+                if (pool == null) {
+                    pool = new AThreadPoolExecutor(TYPE_RIGHT_NOW, RIGHT_NOW_THREAD_SIZE_MIN, RIGHT_NOW_THREAD_SIZE_MAX, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), RIGHT_NOW_OVERFLOW_SIZE, rightNowMetrics);
+                    pool.setOverflowPolicy(overflowPolicy);
+                    pool.setRejectedListener(rejectedListener);
+                    rightNowPool = pool;
                 }
-                rightNowPool.execute(runnable);
-                if (AppContext.DEBUGGABLE) {
-                    int poolSize = rightNowPool.getPoolSize();
-                    int activeSize = rightNowPool.getActiveCount();
-                    Log.i(TAG, "ThreadUtils [rightNowPool] : PoolSize:" + poolSize + " ActiveSize:" + activeSize);
-                    if (activeSize > 45) {
-                        //产生crash
-                        String test = null;
-                        test.equals("");
-                    }
+            }
+        }
+        return pool;
+    }
+
+    private static AThreadPoolExecutor getLocalPool() {
+        AThreadPoolExecutor pool = localPool;
+        if (pool == null) {
+            synchronized (ThreadUtils.class) {
+                pool = localPool;
+                if (pool == null) {
+                    pool = new AThreadPoolExecutor(TYPE_RIGHT_NOW_LOCAL, LOCAL_THREAD_SIZE, LOCAL_THREAD_SIZE, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 0, localMetrics);
+                    pool.allowCoreThreadTimeOut(true);
+                    pool.setRejectedListener(rejectedListener);
+                    localPool = pool;
                 }
+            }
+        }
+        return pool;
+    }
+
+    private static AThreadPoolExecutor getComputePool() {
+        AThreadPoolExecutor pool = computePool;
+        if (pool == null) {
+            synchronized (ThreadUtils.class) {
+                pool = computePool;
+                if (pool == null) {
+                    pool = new AThreadPoolExecutor(TYPE_COMPUTE, COMPUTE_THREAD_SIZE, COMPUTE_THREAD_SIZE, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), 0, computeMetrics);
+                    pool.allowCoreThreadTimeOut(true);
+                    pool.setRejectedListener(rejectedListener);
+                    computePool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * debug时输出线程池状态，不在提交任务的路径上调用
+     */
+    public static void logPoolState() {
+        AThreadPoolExecutor pool = innerPool;
+        if (pool != null) {
+            Log.i(TAG, "ThreadUtils [innerPool] : PoolSize:" + pool.getPoolSize() + " ActiveSize:" + pool.getActiveCount() + " QueueSize:" + pool.getQueue().size());
+        }
+        pool = rightNowPool;
+        if (pool != null) {
+            Log.i(TAG, "ThreadUtils [rightNowPool] : PoolSize:" + pool.getPoolSize() + " ActiveSize:" + pool.getActiveCount() + " OverflowSize:" + pool.getOverflowSize());
+        }
+        pool = localPool;
+        if (pool != null) {
+            Log.i(TAG, "ThreadUtils [localPool] : PoolSize:" + pool.getPoolSize() + " ActiveSize:" + pool.getActiveCount() + " QueueSize:" + pool.getQueue().size());
+        }
+        pool = computePool;
+        if (pool != null) {
+            Log.i(TAG, "ThreadUtils [computePool] : PoolSize:" + pool.getPoolSize() + " ActiveSize:" + pool.getActiveCount() + " QueueSize:" + pool.getQueue().size());
+        }
+    }
+
+    /**
+     * 线程池的运行统计，线程池reset后统计不清零
+     *
+     * @return type未知时返回null
+     */
+    public static PoolMetrics getMetrics(int type) {
+        switch (type) {
+            case TYPE_INNER:
+                return innerMetrics;
+            case TYPE_RIGHT_NOW:
+                return rightNowMetrics;
+            case TYPE_RIGHT_NOW_LOCAL:
+                return localMetrics;
+            case TYPE_COMPUTE:
+                return computeMetrics;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * 被拒绝并回调给{@link IRejectedListener}的任务数
+     */
+    public static long getRejectedCount(int type) {
+        PoolMetrics metrics = getMetrics(type);
+        return metrics == null ? 0 : metrics.rejectedCount.get();
+    }
+
+    /**
+     * 进入过溢出队列的任务数
+     */
+    public static long getOverflowedCount(int type) {
+        PoolMetrics metrics = getMetrics(type);
+        return metrics == null ? 0 : metrics.overflowedCount.get();
+    }
+
+    /**
+     * 因{@link #OVERFLOW_POLICY_CALLER_RUNS}或{@link #OVERFLOW_POLICY_BLOCK}在提交线程上直接执行的任务数
+     */
+    public static long getCallerRunsCount(int type) {
+        PoolMetrics metrics = getMetrics(type);
+        return metrics == null ? 0 : metrics.callerRunsCount.get();
+    }
+
+    /**
+     * 因{@link #OVERFLOW_POLICY_DISCARD_OLDEST}被挤掉的任务数，这部分也计入{@link #getRejectedCount(int)}
+     */
+    public static long getDiscardedCount(int type) {
+        PoolMetrics metrics = getMetrics(type);
+        return metrics == null ? 0 : metrics.discardedCount.get();
+    }
+
+    /**
+     * 把还在排队的任务从线程池中移出，不会创建线程池
+     *
+     * @return 任务还没开始执行并且被移出时返回true
+     */
+    static boolean removeQueued(int type, Runnable runnable) {
+        AThreadPoolExecutor pool = peekPool(type);
+        return pool != null && pool.removeQueued(runnable);
+    }
+
+    /**
+     * 线程池中是否有优先级高于threadPriority的任务在排队
+     */
+    static boolean hasWaitingAbove(int type, int threadPriority) {
+        AThreadPoolExecutor pool = peekPool(type);
+        return pool != null && pool.hasWaitingAbove(threadPriority);
+    }
+
+    /**
+     * 已经创建的线程池，不会创建新的
+     */
+    private static AThreadPoolExecutor peekPool(int type) {
+        AThreadPoolExecutor pool;
+        switch (type) {
+            case TYPE_INNER:
+                pool = innerPool;
+                break;
+            case TYPE_RIGHT_NOW:
+                pool = rightNowPool;
+                break;
+            case TYPE_RIGHT_NOW_LOCAL:
+                pool = localPool;
+                break;
+            case TYPE_COMPUTE:
+                pool = computePool;
                 break;
             default:
+                pool = null;
                 break;
         }
+        return pool;
     }
 
     public static ThreadPoolExecutor getThreadPool(int type) {
@@ -82,6 +391,10 @@ public class ThreadUtils {
                 return innerPool;
             case TYPE_RIGHT_NOW:
                 return rightNowPool;
+            case TYPE_RIGHT_NOW_LOCAL:
+                return localPool;
+            case TYPE_COMPUTE:
+                return computePool;
             default:
                 break;
         }
@@ -90,27 +403,47 @@ public class ThreadUtils {
 
     public static void reset() {
         Log.i(TAG, "duanqing ThreadUtils reset");
-        if (innerPool != null) {
+        AThreadPoolExecutor inner;
+        AThreadPoolExecutor rightNow;
+        AThreadPoolExecutor local;
+        AThreadPoolExecutor compute;
+        synchronized (ThreadUtils.class) {
+            inner = innerPool;
+            innerPool = null;
+            rightNow = rightNowPool;
+            rightNowPool = null;
+            local = localPool;
+            localPool = null;
+            compute = computePool;
+            computePool = null;
+        }
+
+        if (inner != null) {
             try {
-                innerPool.shutdownNow();
+                inner.shutdownNow();
             } catch (Exception e) {
             }
-            innerPool = null;
         }
 
-        if (rightNowPool != null) {
+        if (rightNow != null) {
             try {
-                rightNowPool.shutdownNow();
+                rightNow.shutdownNow();
             } catch (Exception e) {
             }
-            rightNowPool = null;
         }
-    }
 
-    private static class RejectedHandler implements RejectedExecutionHandler {
-        @Override
-        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-            Log.e(TAG, "Task " + r.toString() + " rejected from " + executor.toString(), null);
+        if (local != null) {
+            try {
+                local.shutdownNow();
+            } catch (Exception e) {
+            }
+        }
+
+        if (compute != null) {
+            try {
+                compute.shutdownNow();
+            } catch (Exception e) {
+            }
         }
     }
 }
@@ -128,12 +461,85 @@ class AThreadFactory implements ThreadFactory {
     public Thread newThread(Runnable r) {
         String threadName = "AsyncTask #" + mCount.getAndIncrement();
         Log.i(TAG, "AThreadFactory -> newThread : " + threadName);
-        Thread thread = new Thread(r, threadName);
-        if (type == ThreadUtils.TYPE_RIGHT_NOW || type == ThreadUtils.TYPE_RIGHT_NOW_LOCAL) {
-            thread.setPriority(Thread.MAX_PRIORITY);
-        } else {
-            thread.setPriority(Thread.MIN_PRIORITY);
+        return new AThread(r, threadName, type, ThreadUtils.toThreadPriority(ThreadUtils.defaultQos(type)));
+    }
+}
+
+/**
+ * 线程池的工作线程。{@link Thread#setPriority(int)}在Android上几乎不影响调度，这里直接设置系统的线程优先级(nice值)，
+ * 并记住当前值，任务的QoS和当前值相同时不再调用系统接口
+ */
+class AThread extends Thread {
+    private static final String TAG = "AThread";
+
+    /** 所属线程池，{@link ThreadUtils#TYPE_INNER}等 */
+    final int type;
+    private final int defaultPriority;
+    /** 正在执行本池的任务，只在本线程读写 */
+    boolean running;
+    /** 当前生效的优先级，除{@link #boost(int)}外只在本线程写 */
+    private volatile int currentPriority = Integer.MIN_VALUE;
+    private volatile int tid;
+
+    AThread(Runnable r, String name, int type, int defaultPriority) {
+        super(r, name);
+        this.type = type;
+        this.defaultPriority = defaultPriority;
+    }
+
+    @Override
+    public void run() {
+        //系统优先级只能在线程启动后设置
+        tid = Process.myTid();
+        applyPriority(defaultPriority);
+        super.run();
+    }
+
+    void applyPriority(int priority) {
+        if (priority == currentPriority) {
+            return;
+        }
+        //设置失败也记下来，避免每个任务都重试
+        currentPriority = priority;
+        try {
+            Process.setThreadPriority(priority);
+        } catch (Exception e) {
+            Log.w(TAG, "setThreadPriority " + priority + " failed", e);
+        }
+    }
+
+    void resetPriority() {
+        applyPriority(defaultPriority);
+    }
+
+    /**
+     * 从其他线程提高正在执行的任务的优先级，调用方需保证任务还没执行完，任务结束后照常恢复默认优先级
+     */
+    void boost(int priority) {
+        if (priority < currentPriority) {
+            setPriorityFromOtherThread(priority);
+        }
+    }
+
+    /**
+     * 从其他线程降低正在执行的任务的优先级，约束同{@link #boost(int)}
+     */
+    void lower(int priority) {
+        if (priority > currentPriority) {
+            setPriorityFromOtherThread(priority);
+        }
+    }
+
+    private void setPriorityFromOtherThread(int priority) {
+        int t = tid;
+        if (t == 0) {
+            return;
+        }
+        currentPriority = priority;
+        try {
+            Process.setThreadPriority(t, priority);
+        } catch (Exception e) {
+            Log.w(TAG, "set thread " + t + " priority to " + priority + " failed", e);
         }
-        return thread;
     }
 }
@@ -8,6 +8,7 @@ import android.view.View;
 import android.widget.Toast;
 
 import com.github.p0sitive.autils.AppContext;
+import com.github.p0sitive.autils.task.MainLooperMonitor;
 
 /**
  * Toast显示器。如果你要使用静态方法的方式显示Toast，那么请务必保证之前调用过{@link #doEnable(Context)}
@@ -195,12 +196,17 @@ public class Toaster {
 
     private static Handler handler = new Handler(Looper.getMainLooper()) {
         public void handleMessage(Message msg) {
-            if(msg.what == MSG_SHOW_D) {
-                doShow((String)msg.obj, msg.arg1);
-            } else  if(msg.what == MSG_SHOW_INVALIDATE) {
-                doShowInvalidate((String)msg.obj);
-            } else if(msg.what == MSG_SHOW_INVALIDATE_D) {
-                doShowInvalidate((String)msg.obj, msg.arg1);
+            long start = MainLooperMonitor.enter();
+            try {
+                if(msg.what == MSG_SHOW_D) {
+                    doShow((String)msg.obj, msg.arg1);
+                } else  if(msg.what == MSG_SHOW_INVALIDATE) {
+                    doShowInvalidate((String)msg.obj);
+                } else if(msg.what == MSG_SHOW_INVALIDATE_D) {
+                    doShowInvalidate((String)msg.obj, msg.arg1);
+                }
+            } finally {
+                MainLooperMonitor.exit(MainLooperMonitor.ORIGIN_TOASTER, msg.obj, start);
             }
         };
     };